@@ -0,0 +1,360 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Links RamCode for the extended banked target, whose memory consists of up to {@link MicrocodeEngine#MAX_BANKS} banks
+ * of {@link #BANK_SIZE} cells. Programs that fit into one bank are linked exactly like {@link RamCode#getCode()}, so the
+ * classic ram file for the Johnny Simulator stays the default.
+ *
+ * The variables are placed first, starting at address 1 of bank 0 and continuing into the following banks. The code
+ * follows the variables and is split into overlays that fill one bank each. The linker inserts the bank switches:
+ * <ul>
+ *     <li>CBANK b; JMP a for jumps to another bank and at the end of every overlay to continue in the next one</li>
+ *     <li>DBANK b in front of instructions whose variable is in another bank than the one selected at this point,
+ *     which is unknown after jump points and TST</li>
+ *     <li>a trampoline at the end of the overlay if the single line a TST may skip needs a bank switch, the line then
+ *     jumps to the trampoline which runs it and jumps back</li>
+ * </ul>
+ * DBANK is only ever inserted if the variables don't fit into bank 0. Absolute addresses in the source refer to bank 0.
+ */
+class BankedLinker {
+
+    static final int BANK_SIZE = MicrocodeEngine.MEMORY_SIZE;
+
+    private static final int FAR_JUMP = 2; // CBANK, JMP
+    private static final int MIN_ROOM = 16; // smallest rest of a bank the code may start in
+    private static final int NO_BANK = -1;
+    private static final String EMPTY = "000";
+
+    private final RamCode code;
+    private final List<String> lines;
+    private final Map<String, Integer> variableAddresses = new LinkedHashMap<>();
+    private final int codeStart;
+    private final boolean multipleDataBanks;
+    private final Set<Integer> farLines = new HashSet<>(); // jumps that need a CBANK or a trampoline
+
+    // state of the current layout pass
+    private String[] memory; // null while the pass only measures
+    private int[] lineAddresses = new int[0]; // of the previous pass, used to resolve jumps
+    private int[] nextLineAddresses;
+    private int[] jumpBanks;
+    private List<int[]> trampolines; // address of the TST slot and the line it holds, per trampoline of the current bank
+    private int reserved; // words the trampolines of the current bank need
+    private int address;
+    private int dataBank;
+
+    /**
+     * Constructor places the variables and the start of the code
+     *
+     * @param code RamCode object to link
+     */
+    BankedLinker(RamCode code) {
+        this.code = code;
+        this.lines = code.getCodeLines();
+
+        int variableCount = code.getVariableCount();
+        boolean entryInBankZero = 1 + variableCount + MIN_ROOM <= BANK_SIZE;
+        int dataStart = entryInBankZero ? 1 : FAR_JUMP; // line zero needs a far jump if the code doesn't start in bank 0
+        for (String name : code.getVariables().keySet()) {
+            variableAddresses.put(name, dataStart + variableAddresses.size());
+        }
+
+        int start = dataStart + variableCount;
+        if (BANK_SIZE - start % BANK_SIZE < MIN_ROOM) {
+            start += BANK_SIZE - start % BANK_SIZE;
+        }
+        codeStart = start;
+        multipleDataBanks = variableCount > 0 && (dataStart + variableCount - 1) / BANK_SIZE > 0;
+    }
+
+    /**
+     * Generates the banked ram file, one block of BANK_SIZE lines per bank
+     *
+     * @return banked ram file, or the classic ram file if the program fits into one bank
+     * @throws InvalidJumpsException if there is a jump instruction for a jump point that has not been defined
+     * @throws ProgramTooLargeException if the program needs more than MicrocodeEngine.MAX_BANKS banks, two
+     * consecutive TST can't be linked into one bank or the code modifies its own instructions
+     */
+    List<String> link() throws InvalidJumpsException, ProgramTooLargeException {
+        checkJumps();
+        if (1 + code.getVariableCount() + lines.size() <= BANK_SIZE) {
+            return code.getCode();
+        }
+        if (code.hasCodeReferences()) {
+            throw new ProgramTooLargeException("Code that modifies its own instructions can only be linked into one bank");
+        }
+
+        // far jumps take more words, which can move further jumps into other banks, so repeat until nothing changes
+        boolean changed = true;
+        while (changed) {
+            layout();
+            lineAddresses = nextLineAddresses;
+            changed = false;
+            for (int line = 0; line < lines.size(); line++) {
+                if (RamCode.isPlaceholder(lines.get(line)) && jumpBanks[line] != target(line) / BANK_SIZE) {
+                    changed |= farLines.add(line);
+                }
+            }
+        }
+
+        memory = new String[MicrocodeEngine.MAX_BANKS * BANK_SIZE];
+        layout();
+
+        if (codeStart < BANK_SIZE) {
+            memory[0] = jump(codeStart);
+        } else {
+            memory[0] = JohnnyScript.Codes.CBANK.codeOrdinal + String.format("%03d", codeStart / BANK_SIZE);
+            memory[1] = jump(codeStart);
+        }
+        Map<String, Integer> values = code.getVariables();
+        variableAddresses.forEach((name, variableAddress) ->
+                memory[variableAddress] = String.format("%03d", values.get(name)));
+
+        int banks = (address + BANK_SIZE - 1) / BANK_SIZE;
+        List<String> output = new ArrayList<>(banks * BANK_SIZE);
+        for (int i = 0; i < banks * BANK_SIZE; i++) {
+            output.add(memory[i] == null ? EMPTY : memory[i]);
+        }
+        return output;
+    }
+
+    /**
+     * @param name name of a variable
+     * @return flat address of the variable in the banked ram file, addresses of bank b start at b * BANK_SIZE
+     */
+    int getVariableAddress(String name) {
+        return variableAddresses.get(name);
+    }
+
+    /**
+     * @return number of banks of the ram file returned by {@link #link()}
+     */
+    int getBankCount() {
+        return memory == null ? 1 : (address + BANK_SIZE - 1) / BANK_SIZE;
+    }
+
+    /**
+     * Places every line of the code list and records its address. Lines starting with a TST are placed together with
+     * the lines the TST may skip, so that a TST and its next line never end up in different banks.
+     */
+    private void layout() throws ProgramTooLargeException {
+        nextLineAddresses = new int[lines.size() + 1];
+        jumpBanks = new int[lines.size()];
+        trampolines = new ArrayList<>();
+        reserved = 0;
+        address = codeStart;
+        dataBank = 0;
+
+        int line = 0;
+        while (line < lines.size()) {
+            int end = line + 1;
+            while (end < lines.size() && isTst(end - 1)) {
+                end++;
+            }
+            if (code.isJumpPoint(line)) {
+                dataBank = NO_BANK;
+            }
+
+            int bank = dataBankOf(line);
+            boolean switchBank = bank != NO_BANK && bank != dataBank;
+            int size = (switchBank ? 1 : 0) + (farLines.contains(line) ? FAR_JUMP : 1) + (end - line - 1);
+            for (int slot = line + 1; slot < end - 1; slot++) {
+                if (needsTrampoline(slot, bank)) {
+                    throw new ProgramTooLargeException("TST at line " + slot + " can't be linked into the bank of its TST");
+                }
+            }
+            boolean trampoline = end > line + 1 && needsTrampoline(end - 1, bank);
+            int trampolineSize = trampoline ? trampolineSize(end - 1) : 0;
+
+            if (address % BANK_SIZE + size + trampolineSize + reserved + FAR_JUMP > BANK_SIZE) {
+                closeBank(true);
+            }
+
+            nextLineAddresses[line] = address;
+            if (switchBank) {
+                emit(JohnnyScript.Codes.DBANK.codeOrdinal + String.format("%03d", bank));
+                dataBank = bank;
+            }
+            if (RamCode.isPlaceholder(lines.get(line))) {
+                emitJump(line);
+                dataBank = NO_BANK;
+            } else {
+                emit(instruction(line));
+            }
+
+            for (int slot = line + 1; slot < end; slot++) {
+                nextLineAddresses[slot] = address;
+                if (slot == end - 1 && trampoline) {
+                    trampolines.add(new int[]{address, slot});
+                    reserved += trampolineSize;
+                    emit(EMPTY); // replaced by the jump to the trampoline when the bank is closed
+                } else if (RamCode.isPlaceholder(lines.get(slot))) {
+                    jumpBanks[slot] = address / BANK_SIZE;
+                    emit(jump(target(slot)));
+                } else {
+                    emit(instruction(slot));
+                }
+            }
+            if (end > line + 1) {
+                dataBank = NO_BANK; // the line after the TST is reached with and without the skipped line
+            }
+            line = end;
+        }
+
+        nextLineAddresses[lines.size()] = address;
+        closeBank(false);
+    }
+
+    /**
+     * Ends the overlay in the current bank by placing its trampolines
+     *
+     * @param fallThrough whether the code continues at the start of the next bank
+     */
+    private void closeBank(boolean fallThrough) throws ProgramTooLargeException {
+        int next = address - address % BANK_SIZE + BANK_SIZE;
+        if (fallThrough) {
+            emitFarJump(next);
+        }
+        for (int[] trampoline : trampolines) {
+            if (memory != null) {
+                memory[trampoline[0]] = jump(address);
+            }
+            emitTrampoline(trampoline[1]);
+        }
+        trampolines.clear();
+        reserved = 0;
+        if (fallThrough) {
+            address = next;
+        }
+    }
+
+    /**
+     * Emits a line a TST may skip that doesn't fit into the TST's slot, followed by the jump back behind the slot
+     */
+    private void emitTrampoline(int line) throws ProgramTooLargeException {
+        if (RamCode.isPlaceholder(lines.get(line))) {
+            emitFarJump(target(line));
+            return;
+        }
+        int bank = dataBankOf(line);
+        if (bank != NO_BANK) {
+            emit(JohnnyScript.Codes.DBANK.codeOrdinal + String.format("%03d", bank));
+        }
+        emit(instruction(line));
+        if (RamCode.opcodeOf(lines.get(line)) != JohnnyScript.Codes.HLT.codeOrdinal) {
+            emitFarJump(lineAddresses.length > line + 1 ? lineAddresses[line + 1] : 0);
+        }
+    }
+
+    private int trampolineSize(int line) {
+        if (RamCode.isPlaceholder(lines.get(line))) {
+            return FAR_JUMP;
+        }
+        boolean halts = RamCode.opcodeOf(lines.get(line)) == JohnnyScript.Codes.HLT.codeOrdinal;
+        return (dataBankOf(line) != NO_BANK ? 1 : 0) + 1 + (halts ? 0 : FAR_JUMP);
+    }
+
+    /**
+     * @param line line a TST may skip
+     * @param bank data bank selected for the TST
+     * @return true if the line needs more than one word, or the data bank may be unknown when the line is reached by a jump
+     */
+    private boolean needsTrampoline(int line, int bank) {
+        if (RamCode.isPlaceholder(lines.get(line))) {
+            return farLines.contains(line);
+        }
+        int lineBank = dataBankOf(line);
+        return lineBank != NO_BANK && (lineBank != bank || code.isJumpPoint(line));
+    }
+
+    private void emitJump(int line) throws ProgramTooLargeException {
+        if (farLines.contains(line)) {
+            jumpBanks[line] = (address + 1) / BANK_SIZE;
+            emitFarJump(target(line));
+        } else {
+            jumpBanks[line] = address / BANK_SIZE;
+            emit(jump(target(line)));
+        }
+    }
+
+    private void emitFarJump(int target) throws ProgramTooLargeException {
+        emit(JohnnyScript.Codes.CBANK.codeOrdinal + String.format("%03d", target / BANK_SIZE));
+        emit(jump(target));
+    }
+
+    private void emit(String word) throws ProgramTooLargeException {
+        if (address >= MicrocodeEngine.MAX_BANKS * BANK_SIZE) {
+            throw new ProgramTooLargeException("Program needs more than " + MicrocodeEngine.MAX_BANKS + " banks");
+        }
+        if (memory != null) {
+            memory[address] = word;
+        }
+        address++;
+    }
+
+    private static String jump(int target) {
+        return JohnnyScript.Codes.JMP.codeOrdinal + String.format("%03d", target % BANK_SIZE);
+    }
+
+    /**
+     * @param line line of the code list holding a jump placeholder
+     * @return address of the jump point according to the previous layout pass
+     */
+    private int target(int line) {
+        String placeholder = lines.get(line);
+        int targetLine = code.getJumpPointLines().get(placeholder.substring(0, placeholder.length() - 1));
+        return lineAddresses.length > targetLine ? lineAddresses[targetLine] : 0;
+    }
+
+    /**
+     * @param line line of the code list holding an instruction
+     * @return numeric instruction with the variable resolved to its address in its bank
+     */
+    private String instruction(int line) {
+        String instruction = lines.get(line);
+        if (!RamCode.isVariableReference(instruction)) {
+            return instruction;
+        }
+        int variableAddress = variableAddresses.get(RamCode.variableOf(instruction));
+        return RamCode.opcodeOf(instruction) + String.format("%03d", variableAddress % BANK_SIZE);
+    }
+
+    /**
+     * @param line line of the code list
+     * @return bank the line's instruction reads or writes, NO_BANK if it doesn't access data or all data is in bank 0
+     */
+    private int dataBankOf(int line) {
+        String instruction = lines.get(line);
+        if (!multipleDataBanks || RamCode.isPlaceholder(instruction)) {
+            return NO_BANK;
+        }
+        if (RamCode.isVariableReference(instruction)) {
+            return variableAddresses.get(RamCode.variableOf(instruction)) / BANK_SIZE;
+        }
+        int opcode = RamCode.opcodeOf(instruction);
+        boolean accessesData = opcode != JohnnyScript.Codes.JMP.codeOrdinal && opcode != JohnnyScript.Codes.HLT.codeOrdinal;
+        return accessesData ? 0 : NO_BANK;
+    }
+
+    private boolean isTst(int line) {
+        return !RamCode.isPlaceholder(lines.get(line))
+                && RamCode.opcodeOf(lines.get(line)) == JohnnyScript.Codes.TST.codeOrdinal;
+    }
+
+    private void checkJumps() throws InvalidJumpsException {
+        Set<String> invalid = new HashSet<>();
+        for (String line : lines) {
+            if (RamCode.isPlaceholder(line) && !code.getJumpPointLines().containsKey(line.substring(0, line.length() - 1))) {
+                invalid.add(line.substring(0, line.length() - 1));
+            }
+        }
+        if (!invalid.isEmpty()) {
+            throw new InvalidJumpsException("Jumps to inexistent jump points: " + Arrays.toString(invalid.toArray()));
+        }
+    }
+}
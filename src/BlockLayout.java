@@ -0,0 +1,448 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reorders the basic blocks of a program so that the frequently executed paths fall through instead of jumping.
+ *
+ * The control flow graph is built from the jumps and jump points of a RamCode object. Edge weights come from a profiling
+ * run on the {@link MicrocodeEngine} or, if the program doesn't halt within {@link #PROFILE_CYCLE_LIMIT}, from static
+ * heuristics (blocks inside loops are executed more often). Loop back-edges to small header blocks are replaced by a
+ * copy of the header, so the loop test moves to the end of the loop. Chains of blocks are then formed greedily along the
+ * heaviest edges. Jumps to the block that is placed next are dropped and fall-throughs to a block that is placed
+ * elsewhere get a jump.
+ *
+ * A TST instruction skips exactly the next instruction, so a TST and the following instruction always stay together at
+ * the end of their block.
+ */
+class BlockLayout {
+
+    static final int DUPLICATION_LIMIT = 3; // largest header block that is copied to the end of a loop
+    static final long PROFILE_CYCLE_LIMIT = 10_000_000L;
+
+    private static final int NONE = -1;
+    private static final long LOOP_WEIGHT = 10; // static estimate of how often a loop runs
+    private static final int MAX_LOOP_DEPTH = 6;
+    private static final String BLOCK_LABEL = "block:"; // source jump points can't contain ':' so this never clashes
+
+    private final RamCode code;
+    private final List<String> lines;
+    private final List<Block> blocks;
+    private final int[] blockAt; // block starting at a line of the code list, NONE for lines inside a block
+
+    /**
+     * Profiles the code and reorders its blocks. If the profiling run halted, the reordered code is run as well and only
+     * used if it executes fewer instructions and ends with the same variables and accumulator.
+     *
+     * @param code RamCode object to optimize
+     * @return RamCode object with the reordered code, or the given object if the code can't be reordered safely
+     */
+    static RamCode optimize(RamCode code) {
+        if (!canReorder(code)) {
+            return code;
+        }
+
+        MicrocodeEngine original = load(code);
+        CycleReport before = run(original);
+        long[] counts = before == null ? estimate(code) : countLines(code, before);
+        RamCode reordered = new BlockLayout(code, counts).layout();
+        if (before != null) {
+            MicrocodeEngine engine = load(reordered);
+            CycleReport after = run(engine);
+            if (after == null || after.getInstructions() >= before.getInstructions()
+                    || !sameData(original, engine, 1 + code.getVariableCount())) {
+                return code;
+            }
+        }
+        return reordered;
+    }
+
+    /**
+     * Constructor splits the code into basic blocks
+     *
+     * @param code RamCode object that passed {@link #canReorder(RamCode)}
+     * @param counts executions of every line of the code list
+     */
+    BlockLayout(RamCode code, long[] counts) {
+        this.code = code;
+        this.lines = code.getCodeLines();
+        this.blocks = new ArrayList<>();
+        this.blockAt = new int[lines.size() + 1];
+
+        boolean[] leader = new boolean[lines.size() + 1];
+        leader[0] = true;
+        for (int line : code.getJumpPointLines().values()) {
+            leader[line] = true;
+        }
+        for (int i = 0; i < lines.size(); i++) {
+            if (isTst(i)) {
+                leader[i + 2] = true;
+            } else if (RamCode.isPlaceholder(lines.get(i)) || isHlt(i)) {
+                leader[i + 1] = true;
+            }
+        }
+
+        Arrays.fill(blockAt, NONE);
+        for (int start = 0; start < lines.size(); ) {
+            int end = start + 1;
+            while (!leader[end]) {
+                end++;
+            }
+            blockAt[start] = blocks.size();
+            blocks.add(new Block(start, end));
+            start = end;
+        }
+        code.getJumpPointLines().forEach((jpName, line) -> blocks.get(blockAt[line]).names.add(jpName));
+
+        blocks.forEach(block -> block.link(counts));
+    }
+
+    /**
+     * Checks that the code has no jumps to undefined jump points, doesn't address anything behind the variables by
+     * absolute address (the code moves and may grow into cells used as scratch), can't run off its end and has no TST
+     * whose next instruction is a jump point or another TST
+     */
+    static boolean canReorder(RamCode code) {
+        List<String> lines = code.getCodeLines();
+        Map<String, Integer> jumpPoints = code.getJumpPointLines();
+        int codeStart = 1 + code.getVariableCount();
+
+        if (lines.isEmpty() || jumpPoints.containsValue(lines.size()) || code.hasCodeReferences()) {
+            return false;
+        }
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            if (RamCode.isPlaceholder(line)) {
+                if (!jumpPoints.containsKey(line.substring(0, line.length() - 1))) {
+                    return false;
+                }
+                continue;
+            }
+            if (!RamCode.isVariableReference(line)) {
+                int address = RamCode.addressOf(line);
+                if (address >= codeStart) {
+                    return false;
+                }
+            }
+            if (RamCode.opcodeOf(line) == JohnnyScript.Codes.TST.codeOrdinal) {
+                if (i + 2 >= lines.size() || code.isJumpPoint(i + 1) || (!RamCode.isPlaceholder(lines.get(i + 1))
+                        && RamCode.opcodeOf(lines.get(i + 1)) == JohnnyScript.Codes.TST.codeOrdinal)) {
+                    return false;
+                }
+            }
+        }
+        String last = lines.get(lines.size() - 1);
+        return RamCode.isPlaceholder(last) || RamCode.opcodeOf(last) == JohnnyScript.Codes.HLT.codeOrdinal;
+    }
+
+    /**
+     * Runs the code on the MicrocodeEngine
+     *
+     * @param code RamCode object to run
+     * @return report of the run or null if the code doesn't link or doesn't halt within PROFILE_CYCLE_LIMIT
+     */
+    static CycleReport profile(RamCode code) {
+        return run(load(code));
+    }
+
+    /**
+     * @return engine loaded with the code, null if the code doesn't link
+     */
+    private static MicrocodeEngine load(RamCode code) {
+        try {
+            return new MicrocodeEngine(code.getCode());
+        } catch (InvalidJumpsException | ProgramTooLargeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return report of the run, null if there is no engine or the code doesn't halt within PROFILE_CYCLE_LIMIT
+     */
+    private static CycleReport run(MicrocodeEngine engine) {
+        if (engine == null) {
+            return null;
+        }
+        try {
+            return engine.run(PROFILE_CYCLE_LIMIT);
+        } catch (InvalidInstructionException | CycleLimitExceededException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return whether both engines hold the same values in the cells below codeStart and in the accumulator
+     */
+    private static boolean sameData(MicrocodeEngine first, MicrocodeEngine second, int codeStart) {
+        for (int address = 1; address < codeStart; address++) {
+            if (first.readMemory(address) != second.readMemory(address)) {
+                return false;
+            }
+        }
+        return first.getAccumulator() == second.getAccumulator();
+    }
+
+    /**
+     * @param code RamCode object the report was generated for
+     * @param report report of a run of the code
+     * @return executions per line of the code list
+     */
+    static long[] countLines(RamCode code, CycleReport report) {
+        long[] counts = new long[code.getCodeLines().size()];
+        int codeStart = 1 + code.getVariableCount();
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = report.getExecutions(codeStart + i);
+        }
+        return counts;
+    }
+
+    /**
+     * Estimates the executions of every line: each loop (a backward jump and the lines it jumps over) multiplies by
+     * LOOP_WEIGHT, a TST skips a backward jump in 1 of LOOP_WEIGHT cases and any other instruction in half the cases
+     *
+     * @param code RamCode object that passed {@link #canReorder(RamCode)}
+     * @return estimated executions per line of the code list
+     */
+    static long[] estimate(RamCode code) {
+        List<String> lines = code.getCodeLines();
+        int[] depth = new int[lines.size()];
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            if (RamCode.isPlaceholder(line)) {
+                int target = code.getJumpPointLines().get(line.substring(0, line.length() - 1));
+                for (int j = target; j <= i; j++) {
+                    depth[j]++;
+                }
+            }
+        }
+
+        long[] counts = new long[lines.size()];
+        for (int i = 0; i < lines.size(); i++) {
+            long count = 1;
+            for (int d = 0; d < Math.min(depth[i], MAX_LOOP_DEPTH); d++) {
+                count *= LOOP_WEIGHT;
+            }
+            counts[i] = count;
+        }
+        for (int i = 0; i + 1 < lines.size(); i++) {
+            String line = lines.get(i);
+            if (!RamCode.isPlaceholder(line) && RamCode.opcodeOf(line) == JohnnyScript.Codes.TST.codeOrdinal) {
+                String slot = lines.get(i + 1);
+                boolean backward = RamCode.isPlaceholder(slot)
+                        && code.getJumpPointLines().get(slot.substring(0, slot.length() - 1)) <= i;
+                counts[i + 1] = backward ? counts[i] - counts[i] / LOOP_WEIGHT : counts[i] / 2;
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Copies loop headers into the blocks that jump back to them, forms chains along the heaviest edges and builds a new
+     * RamCode object with the blocks in chain order
+     *
+     * @return RamCode object with the reordered code, or the original one if the new code would be larger and not fit
+     */
+    RamCode layout() {
+        duplicateLoopHeaders();
+
+        // every block starts as a chain of its own, edges are merged heaviest first
+        int[] next = new int[blocks.size()];
+        int[] previous = new int[blocks.size()];
+        Arrays.fill(next, NONE);
+        Arrays.fill(previous, NONE);
+
+        List<long[]> edges = new ArrayList<>(); // {weight, from, to}
+        for (int b = 0; b < blocks.size(); b++) {
+            Block block = blocks.get(b);
+            if (block.fallThrough != NONE) {
+                edges.add(new long[]{block.fallThroughWeight, b, block.fallThrough});
+            }
+            if (block.target != NONE && !block.slotJump) {
+                edges.add(new long[]{block.targetWeight, b, block.target});
+            }
+        }
+        edges.sort(Comparator.comparingLong((long[] edge) -> -edge[0]).thenComparingLong(edge -> edge[1]));
+
+        for (long[] edge : edges) {
+            int from = (int) edge[1];
+            int to = (int) edge[2];
+            if (next[from] == NONE && previous[to] == NONE && to != 0 && head(previous, from) != to) {
+                next[from] = to;
+                previous[to] = from;
+            }
+        }
+
+        // the chain of the entry block comes first, all others keep their order
+        List<Integer> order = new ArrayList<>();
+        for (int b = 0; b < blocks.size(); b++) {
+            if (previous[b] == NONE) {
+                for (int c = b; c != NONE; c = next[c]) {
+                    order.add(c);
+                }
+            }
+        }
+
+        RamCode output = emit(order);
+        int limit = RamCode.MAX_LINES - code.getVariableCount();
+        if (output.getCodeLines().size() > lines.size() && output.getCodeLines().size() > limit) {
+            return code;
+        }
+        return output;
+    }
+
+    /**
+     * Replaces each unconditional backward jump to a small block with a copy of that block
+     */
+    private void duplicateLoopHeaders() {
+        int originalBlocks = blocks.size();
+        for (int b = 0; b < originalBlocks; b++) {
+            Block block = blocks.get(b);
+            if (block.target == NONE || block.slotJump || block.target > b || block.duplicated) {
+                continue;
+            }
+            Block header = blocks.get(block.target);
+            if (header == block || header.duplicated || header.lines.size() > DUPLICATION_LIMIT
+                    || header.target == NONE && header.fallThrough == NONE) {
+                continue;
+            }
+
+            // the copy takes over the share of the header's executions that came through this jump
+            double share = header.count == 0 ? 0 : Math.min(1, (double) block.targetWeight / header.count);
+            block.lines.addAll(header.lines);
+            block.target = header.target;
+            block.slotJump = header.slotJump;
+            block.fallThrough = header.fallThrough;
+            block.targetWeight = (long) (header.targetWeight * share);
+            block.fallThroughWeight = (long) (header.fallThroughWeight * share);
+            block.duplicated = true;
+
+            header.count -= Math.min(header.count, (long) (header.count * share));
+            header.targetWeight -= (long) (header.targetWeight * share);
+            header.fallThroughWeight -= (long) (header.fallThroughWeight * share);
+        }
+    }
+
+    /**
+     * Builds the RamCode object for the given block order, dropping jumps to the next block and adding jumps for
+     * fall-throughs to blocks that aren't placed next
+     */
+    private RamCode emit(List<Integer> order) {
+        RamCode output = new RamCode();
+        try {
+            for (Map.Entry<String, Integer> variable : code.getVariables().entrySet()) {
+                output.addVar(variable.getKey(), variable.getValue());
+            }
+            for (int i = 0; i < order.size(); i++) {
+                int b = order.get(i);
+                int following = i + 1 < order.size() ? order.get(i + 1) : NONE;
+                Block block = blocks.get(b);
+
+                if (block.names.isEmpty()) {
+                    output.addJumpPoint(label(b));
+                }
+                for (String jpName : block.names) {
+                    output.addJumpPoint(jpName);
+                }
+                for (String line : block.lines) {
+                    if (RamCode.isPlaceholder(line)) {
+                        output.addJump(label(block.target)); // jump in the TST slot
+                    } else {
+                        output.addCode(line);
+                    }
+                }
+                if (block.target != NONE && !block.slotJump && block.target != following) {
+                    output.addJump(label(block.target));
+                }
+                if (block.fallThrough != NONE && block.fallThrough != following) {
+                    output.addJump(label(block.fallThrough));
+                }
+            }
+        } catch (DuplicateVariableException | DuplicateJumpPointException e) {
+            throw new IllegalStateException("Reordering copied a variable or jump point twice", e);
+        }
+        return output;
+    }
+
+    private String label(int b) {
+        Block block = blocks.get(b);
+        return block.names.isEmpty() ? BLOCK_LABEL + b : block.names.get(0);
+    }
+
+    private static int head(int[] previous, int b) {
+        while (previous[b] != NONE) {
+            b = previous[b];
+        }
+        return b;
+    }
+
+    private boolean isTst(int line) {
+        return !RamCode.isPlaceholder(lines.get(line))
+                && RamCode.opcodeOf(lines.get(line)) == JohnnyScript.Codes.TST.codeOrdinal;
+    }
+
+    private boolean isHlt(int line) {
+        return !RamCode.isPlaceholder(lines.get(line))
+                && RamCode.opcodeOf(lines.get(line)) == JohnnyScript.Codes.HLT.codeOrdinal;
+    }
+
+    private int targetOf(int line) {
+        String placeholder = lines.get(line);
+        return blockAt[code.getJumpPointLines().get(placeholder.substring(0, placeholder.length() - 1))];
+    }
+
+    /**
+     * Basic block of the code list together with its successors
+     */
+    private class Block {
+
+        final int start;
+        final int end;
+        final List<String> names = new ArrayList<>(); // jump points defined at the start of the block
+        final List<String> lines = new ArrayList<>();  // instructions without an unconditional jump at the end
+
+        int target = NONE;       // block jumped to at the end or from the TST slot
+        boolean slotJump;        // whether the jump to target is the instruction skipped by TST
+        int fallThrough = NONE;  // block that has to follow, either physically or by an added jump
+        long count;
+        long targetWeight;
+        long fallThroughWeight;
+        boolean duplicated;
+
+        Block(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * Determines the successors of the block from its last instructions and weights the edges
+         */
+        void link(long[] counts) {
+            count = counts[start];
+            int last = end - 1;
+            boolean tstSlot = last > start && isTst(last - 1);
+
+            lines.addAll(BlockLayout.this.lines.subList(start, end));
+            if (RamCode.isPlaceholder(BlockLayout.this.lines.get(last))) {
+                target = targetOf(last);
+                targetWeight = counts[last];
+                if (tstSlot) {
+                    slotJump = true;
+                    fallThrough = blockAt[end];
+                    fallThroughWeight = counts[last - 1] - counts[last];
+                } else {
+                    lines.remove(lines.size() - 1);
+                }
+            } else if (isHlt(last)) {
+                if (tstSlot) {
+                    fallThrough = blockAt[end];
+                    fallThroughWeight = counts[last - 1] - counts[last];
+                }
+            } else {
+                fallThrough = blockAt[end];
+                fallThroughWeight = counts[tstSlot ? last - 1 : last];
+            }
+        }
+    }
+}
@@ -0,0 +1,384 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Expands the macros and subroutines of a JohnnyScript program:
+ * <pre>
+ * macro double          subroutine square
+ * take #x               ...
+ * add #x                end
+ * end
+ *                       call square
+ * call double           call double
+ * </pre>
+ * A macro is copied to every call. A subroutine is either copied to the call as well or called: the caller saves a jump
+ * back to itself into the return slot at the end of the subroutine and jumps to the subroutine, which runs into the
+ * return slot when it's done. The machine has no call stack, so subroutines can't be recursive. The caller's accumulator
+ * is kept in a variable of the subroutine during the call and restored when the subroutine starts, so a called
+ * subroutine computes the same as an inlined copy.
+ *
+ * Every call site costs {@link #CALL_STEPS} more instructions per execution if it's called instead of inlined, while
+ * every inlined copy takes memory, unless the body is smaller than the call. The inliner profiles the program with all
+ * subroutines called on the {@link MicrocodeEngine}, or estimates the executions if it doesn't halt. It then inlines
+ * every call site whose copy makes the program smaller, and the remaining call sites in order of steps saved per line of
+ * memory as long as the program stays within the memory limit.
+ *
+ * Variables declared in a body are global and declared once where the body is defined. All variables are declared
+ * before any code is generated, so a copy of a body can use its variables even if it's placed before the definition.
+ * Jump points defined in a body are local to every copy.
+ */
+class Inliner {
+
+    // SAVE and TAKE of the accumulator, TAKE and SAVE of the return jump, JMP to the subroutine and the return jump
+    static final int CALL_STEPS = 6;
+
+    private static final String MACRO = "macro";
+    private static final String SUBROUTINE = "subroutine";
+    private static final String END = "end";
+    private static final String CALL = "call";
+    // source jump points and variables can't contain ':' or '#' respectively, so the generated names never clash
+    private static final String ENTRY = ":call";
+    private static final String RETURN = ":return";
+    private static final String RETURN_POINT = "return:";
+    private static final String RETURN_VARIABLE = "return#";
+    private static final String ACCUMULATOR_VARIABLE = "accumulator#";
+
+    private final List<Statement> main = new ArrayList<>();
+    private final Map<String, Definition> definitions = new LinkedHashMap<>();
+    private final List<Statement> sites = new ArrayList<>(); // every call of a subroutine in order of the source
+    private final StringBuilder report = new StringBuilder();
+
+    // state of the current expansion
+    private RamCode code;
+    private Set<Statement> inlined;
+    private Map<Statement, List<Integer>> callLines; // code lines of the JMP of every call emitted for a site
+    private List<Definition> called;
+    private int copies;
+    private int calls;
+
+    /**
+     * Constructor separates the definitions from the program and checks the calls
+     *
+     * @param sourceLines {@link List} of String objects containing lines of JohnnyScript code
+     * @throws InvalidScriptException on invalid definitions, calls of undefined names or recursion
+     */
+    Inliner(List<String> sourceLines) throws InvalidScriptException {
+        Definition current = null;
+        int lineNumber = 0;
+        for (int i = 0; i < sourceLines.size(); i++) {
+            String line = JohnnyScript.decomment(sourceLines.get(i));
+            if (line == null) {
+                continue;
+            }
+            Statement statement = new Statement(i + 1, lineNumber, line);
+            lineNumber++;
+
+            String[] parts = line.split(" ");
+            if (parts[0].equals(MACRO) || parts[0].equals(SUBROUTINE)) {
+                if (parts.length != 2 || current != null) {
+                    throw new InvalidScriptException("Syntax error at line " + statement.lineNumber + ": " + line
+                            + " (definition: macro|subroutine name, definitions can't be nested)");
+                }
+                if (definitions.containsKey(parts[1])) {
+                    throw new InvalidScriptException("Macro or subroutine cannot be defined twice: " + parts[1]);
+                }
+                current = new Definition(parts[1], parts[0].equals(MACRO));
+                definitions.put(current.name, current);
+            } else if (line.equals(END)) {
+                if (current == null) {
+                    throw new InvalidScriptException("Syntax error at line " + statement.lineNumber + ": end without definition");
+                }
+                current = null;
+            } else if (parts[0].equals(CALL) && parts.length != 2) {
+                throw new InvalidScriptException("Syntax error at line " + statement.lineNumber + ": " + line + " (call: call name)");
+            } else if (current == null || statement.isDeclaration()) {
+                main.add(statement); // variables of bodies are declared where the body is defined
+            } else {
+                current.body.add(statement);
+                if (!line.contains("#") && line.contains(":")) {
+                    current.jumpPoints.add(line.replace(":", ""));
+                }
+            }
+        }
+        if (current != null) {
+            throw new InvalidScriptException("Missing end of definition: " + current.name);
+        }
+
+        checkCalls(main, new ArrayList<>());
+        for (Definition definition : definitions.values()) {
+            checkCalls(definition.body, new ArrayList<>(Collections.singletonList(definition.name)));
+        }
+        sites.sort(Comparator.comparingInt(site -> site.sourceLine));
+    }
+
+    /**
+     * Checks that every call names a definition and that no definition calls itself, directly or indirectly, and
+     * collects the call sites of subroutines
+     *
+     * @param statements statements to check
+     * @param path names of the definitions the statements are part of
+     */
+    private void checkCalls(List<Statement> statements, List<String> path) throws InvalidScriptException {
+        for (Statement statement : statements) {
+            String target = statement.callTarget();
+            if (target == null) {
+                continue;
+            }
+            Definition definition = definitions.get(target);
+            if (definition == null) {
+                throw new InvalidScriptException("Call of undefined macro or subroutine at line " + statement.lineNumber + ": " + target);
+            }
+            if (path.contains(target)) {
+                throw new InvalidScriptException("Recursive call at line " + statement.lineNumber + ": " + path + " -> " + target);
+            }
+            if (path.size() <= 1 && !definition.macro && !sites.contains(statement)) {
+                sites.add(statement);
+            }
+            path.add(target);
+            checkCalls(definition.body, path);
+            path.remove(path.size() - 1);
+        }
+    }
+
+    /**
+     * Decides per call site whether the subroutine is inlined or called and reports the decisions
+     *
+     * @param limit number of lines the ram file may have
+     * @return RamCode object of the program
+     */
+    RamCode compile(int limit) throws InvalidScriptException, DuplicateVariableException, VariableNotInitializedException, DuplicateJumpPointException {
+        RamCode best = expand(Collections.emptySet());
+        if (sites.isEmpty()) {
+            return best;
+        }
+
+        CycleReport profile = BlockLayout.profile(best);
+        long[] frequencies = frequencies(best, profile);
+        int callSize = size(best);
+
+        // steps saved per line of memory, sites that even save memory come first
+        Map<Statement, Integer> growth = new HashMap<>();
+        for (Statement site : sites) {
+            growth.put(site, size(expand(Collections.singleton(site))) - callSize);
+        }
+        List<Statement> order = new ArrayList<>(sites);
+        order.sort(Comparator.comparingDouble((Statement site) -> growth.get(site) <= 0 ? Double.NEGATIVE_INFINITY
+                : -(double) frequencies[sites.indexOf(site)] / growth.get(site)).thenComparingInt(sites::indexOf));
+
+        Set<Statement> chosen = new HashSet<>();
+        for (Statement site : order) {
+            if (chosen.contains(site)) {
+                continue;
+            }
+            // a single copy may not fit while copying all remaining calls of the subroutine does, as its body goes away
+            List<Statement> group = new ArrayList<>();
+            for (Statement other : sites) {
+                if (!chosen.contains(other) && other.callTarget().equals(site.callTarget())) {
+                    group.add(other);
+                }
+            }
+            for (List<Statement> candidateSites : Arrays.asList(Collections.singletonList(site), group)) {
+                Set<Statement> candidate = new HashSet<>(chosen);
+                candidate.addAll(candidateSites);
+                RamCode expanded = expand(candidate);
+                boolean executed = candidateSites.stream().anyMatch(other -> frequencies[sites.indexOf(other)] > 0);
+                // copies that shrink the program are always taken, even while the program is still over the limit
+                if (size(expanded) <= size(best) || (size(expanded) <= limit && executed)) {
+                    chosen = candidate;
+                    best = expanded;
+                    break;
+                }
+            }
+        }
+
+        long saved = 0;
+        report.append(String.format("call sites (%s executions):%n", profile == null ? "estimated" : "profiled"));
+        for (int i = 0; i < sites.size(); i++) {
+            Statement site = sites.get(i);
+            report.append(String.format("  line %d call %s: %s, %d executions%n", site.sourceLine, site.callTarget(),
+                    chosen.contains(site) ? "inlined" : "called", frequencies[i]));
+            if (chosen.contains(site)) {
+                saved += frequencies[i] * CALL_STEPS;
+            }
+        }
+        report.append(String.format("size: %d lines with all calls, %d lines compiled, limit %d%n", callSize, size(best), limit));
+        CycleReport compiled = profile == null ? null : BlockLayout.profile(best);
+        if (compiled != null) {
+            report.append(String.format("steps: %d with all calls, %d compiled%n", profile.getInstructions(), compiled.getInstructions()));
+        } else {
+            report.append(String.format("steps: about %d saved%n", saved));
+        }
+        return best;
+    }
+
+    /**
+     * @return RamCode object of the program with every subroutine inlined
+     */
+    RamCode inlineAll() throws InvalidScriptException, DuplicateVariableException, VariableNotInitializedException, DuplicateJumpPointException {
+        RamCode all = expand(new HashSet<>(sites));
+        if (!sites.isEmpty()) {
+            report.append(String.format("call sites: %d inlined, %d lines compiled%n", sites.size(), size(all)));
+        }
+        return all;
+    }
+
+    /**
+     * @return report of the last {@link #compile(int)} or {@link #inlineAll()}, empty if the program calls no subroutine
+     */
+    String getReport() {
+        return report.toString();
+    }
+
+    /**
+     * Generates the code with the given call sites inlined and all other subroutine calls emitted as calls. The
+     * subroutines that are called are placed behind the program.
+     */
+    private RamCode expand(Set<Statement> inlinedSites) throws InvalidScriptException, DuplicateVariableException, VariableNotInitializedException, DuplicateJumpPointException {
+        code = new RamCode();
+        inlined = inlinedSites;
+        callLines = new HashMap<>();
+        called = new ArrayList<>();
+        copies = 0;
+        calls = 0;
+
+        // declared in source order, so they keep their addresses whatever is inlined
+        for (Statement statement : main) {
+            if (statement.isDeclaration()) {
+                JohnnyScript.parseLine(code, statement.lineNumber, statement.text, "", Collections.emptySet());
+            }
+        }
+        emit(main, "", Collections.emptySet());
+        for (int i = 0; i < called.size(); i++) { // subroutines may add further subroutines to the list
+            Definition definition = called.get(i);
+            code.addJumpPoint(definition.name + ENTRY);
+            code.addCodeWithVar(JohnnyScript.Codes.TAKE.getCode(), ACCUMULATOR_VARIABLE + definition.name);
+            emit(definition.body, definition.name + ENTRY + ":", definition.jumpPoints);
+            code.addJumpPoint(definition.name + RETURN);
+            code.addCode(JohnnyScript.Codes.HLT.codeOrdinal + "000"); // return slot, overwritten by every call
+        }
+        return code;
+    }
+
+    private void emit(List<Statement> statements, String prefix, Set<String> localJumpPoints) throws InvalidScriptException, DuplicateVariableException, VariableNotInitializedException, DuplicateJumpPointException {
+        for (Statement statement : statements) {
+            if (statement.isDeclaration()) {
+                continue; // declared by expand
+            }
+            String target = statement.callTarget();
+            if (target == null) {
+                JohnnyScript.parseLine(code, statement.lineNumber, statement.text, prefix, localJumpPoints);
+                continue;
+            }
+
+            Definition definition = definitions.get(target);
+            if (definition.macro || inlined.contains(statement)) {
+                copies++;
+                emit(definition.body, definition.name + ":" + copies + ":", definition.jumpPoints);
+            } else {
+                if (!called.contains(definition)) {
+                    called.add(definition);
+                    code.addVar(ACCUMULATOR_VARIABLE + definition.name, 0);
+                }
+                calls++;
+                code.addCodeWithVar(JohnnyScript.Codes.SAVE.getCode(), ACCUMULATOR_VARIABLE + definition.name);
+                code.addJumpVar(RETURN_VARIABLE + calls, RETURN_POINT + calls);
+                code.addCodeWithVar(JohnnyScript.Codes.TAKE.getCode(), RETURN_VARIABLE + calls);
+                code.addCodeWithJumpPoint(JohnnyScript.Codes.SAVE.getCode(), definition.name + RETURN);
+                callLines.computeIfAbsent(statement, site -> new ArrayList<>()).add(code.getCodeLines().size());
+                code.addJump(definition.name + ENTRY);
+                code.addJumpPoint(RETURN_POINT + calls);
+            }
+        }
+    }
+
+    /**
+     * @return executions of every call site according to the profile, or estimated if there is no profile
+     */
+    private long[] frequencies(RamCode calledCode, CycleReport profile) {
+        long[] counts = null;
+        if (profile != null) {
+            counts = BlockLayout.countLines(calledCode, profile);
+        } else if (jumpsDefined(calledCode)) {
+            counts = BlockLayout.estimate(calledCode);
+        }
+
+        long[] frequencies = new long[sites.size()];
+        for (int i = 0; i < sites.size(); i++) {
+            for (int line : callLines.getOrDefault(sites.get(i), Collections.emptyList())) {
+                frequencies[i] += counts == null ? 1 : counts[line];
+            }
+        }
+        return frequencies;
+    }
+
+    private static boolean jumpsDefined(RamCode code) {
+        for (String line : code.getCodeLines()) {
+            if (RamCode.isPlaceholder(line) && !code.getJumpPointLines().containsKey(line.substring(0, line.length() - 1))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return number of lines of the ram file
+     */
+    private static int size(RamCode code) {
+        return 1 + code.getVariableCount() + code.getCodeLines().size();
+    }
+
+    /**
+     * A line of source code
+     */
+    private static class Statement {
+
+        final int sourceLine; // line in the source file, starting at 1
+        final int lineNumber; // line number used in error messages of the parser
+        final String text;
+
+        Statement(int sourceLine, int lineNumber, String text) {
+            this.sourceLine = sourceLine;
+            this.lineNumber = lineNumber;
+            this.text = text;
+        }
+
+        /**
+         * @return whether the statement declares a variable
+         */
+        boolean isDeclaration() {
+            return text.startsWith("#");
+        }
+
+        /**
+         * @return name of the called macro or subroutine, null if the statement isn't a call
+         */
+        String callTarget() {
+            String[] parts = text.split(" ");
+            return parts[0].equals(CALL) ? parts[1] : null;
+        }
+    }
+
+    /**
+     * A macro or subroutine
+     */
+    private static class Definition {
+
+        final String name;
+        final boolean macro;
+        final List<Statement> body = new ArrayList<>();
+        final Set<String> jumpPoints = new HashSet<>();
+
+        Definition(String name, boolean macro) {
+            this.name = name;
+            this.macro = macro;
+        }
+    }
+}
@@ -3,9 +3,12 @@ import java.nio.file.FileSystems;
 import java.nio.file.Path;
 import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Compiles JohnnyScript (.jns) files to ram files for the Johnny Simulator
@@ -13,16 +16,28 @@ import java.util.Map;
 public class JohnnyScript {
 
     private static final String OUTPUT_EXTENSION = ".ram";
+    private static final String BANKED_OUTPUT_EXTENSION = ".xram";
     private static final String LINE_COMMENT_DELIMITER = "//";
     private static final String JUMP_POINT_DELIMITER = ":";
     private static final String VARIABLE_DELIMITER = "#";
+    private static final String RULES_OPTION = "-rules";
+    private static final String LAYOUT_OPTION = "-layout";
+    private static final String BANKED_OPTION = "-banked";
 
     public static void main(String[] args) throws IOException {
 
         Path source = getFilename(args);
         List<String> code = Files.readAllLines(source);
         try {
-            writeOutFile(source.getFileName().toString(), compileCode(code));
+            RuleDatabase rules = getRules(args);
+            boolean layout = Arrays.asList(args).contains(LAYOUT_OPTION);
+            boolean banked = Arrays.asList(args).contains(BANKED_OPTION);
+            StringBuilder report = new StringBuilder();
+            List<String> ram = compileCode(code, rules, layout, banked, report);
+            System.out.print(report);
+            // programs that fit into one bank are linked to the classic ram file, which the simulator can load
+            boolean multipleBanks = ram.size() > MicrocodeEngine.MEMORY_SIZE;
+            writeOutFile(source.getFileName().toString(), multipleBanks ? BANKED_OUTPUT_EXTENSION : OUTPUT_EXTENSION, ram);
         } catch (Exception e) {
             throw new CompilerHaltException(e);
         }
@@ -33,43 +48,83 @@ public class JohnnyScript {
      * Generates ram code using RamCode object by iterating through every line of source code and handling it according to it's content
      *
      * @param sourceLines {@link List} of String objects containing lines of JohnnyScript code
-     * @return compiled numeric code for .ram file
-     */
-    private static List<String> compileCode(List<String> sourceLines) throws InvalidScriptException, DuplicateVariableException, VariableNotInitializedException, DuplicateJumpPointException {
-        RamCode code = new RamCode();
-        int lineNumber = 0;
-        for (String line:sourceLines) {
-            line = decomment(line);
-            if (line == null) {
-                continue;
-            }
-            if (line.contains(VARIABLE_DELIMITER)) {
-                code = handleVariable(code, lineNumber, line);
-            } else {
-                if (line.contains(JUMP_POINT_DELIMITER)) {
-                    // handle jump point
-                    String jpName = line.replace(":", "");
-                    code.addJumpPoint(jpName);
-                } else {
-                    // check if jump, if yes handle accordingly
-                    String[] parts = line.split(" ");
-                    if(Codes.valueOf(parts[0].toUpperCase()).codeOrdinal == Codes.JMP.codeOrdinal) {
-                        code.addJump(parts[1]);
-                    } else code.addCode(encode(line, true)); // else just add the code as is
-                }
-
-            }
-            lineNumber++;
+     * @param rules rewrite rules applied to the straight-line code before linking
+     * @param layout whether the blocks are reordered by {@link BlockLayout} to save jumps
+     * @param banked whether the code is linked by {@link BankedLinker} for the extended target
+     * @return compiled numeric code for .ram file, or for .xram file if banked and larger than one bank
+     */
+    static List<String> compileCode(List<String> sourceLines, RuleDatabase rules, boolean layout, boolean banked) throws InvalidScriptException, DuplicateVariableException, VariableNotInitializedException, DuplicateJumpPointException, InvalidRuleException {
+        return compileCode(sourceLines, rules, layout, banked, new StringBuilder());
+    }
 
+    /**
+     * Generates ram code like {@link #compileCode(List, RuleDatabase, boolean, boolean)} and collects the decisions of
+     * the {@link Inliner}
+     *
+     * @param sourceLines {@link List} of String objects containing lines of JohnnyScript code
+     * @param rules rewrite rules applied to the straight-line code before linking
+     * @param layout whether the blocks are reordered by {@link BlockLayout} to save jumps
+     * @param banked whether the code is linked by {@link BankedLinker} for the extended target
+     * @param report the inlining report is appended to it, nothing if the program calls no subroutine
+     * @return compiled numeric code for .ram file, or for .xram file if banked and larger than one bank
+     */
+    static List<String> compileCode(List<String> sourceLines, RuleDatabase rules, boolean layout, boolean banked, StringBuilder report) throws InvalidScriptException, DuplicateVariableException, VariableNotInitializedException, DuplicateJumpPointException, InvalidRuleException {
+        // calls can't return across banks, so the banked target gets every subroutine inlined
+        Inliner inliner = new Inliner(sourceLines);
+        RamCode code = banked ? inliner.inlineAll() : inliner.compile(RamCode.MAX_LINES + 1);
+        report.append(inliner.getReport());
+        rules.apply(code);
+        if (layout) {
+            code = BlockLayout.optimize(code);
         }
 
         try {
-            return code.getCode();
-        } catch (InvalidJumpsException e) {
+            return banked ? new BankedLinker(code).link() : code.getCode();
+        } catch (InvalidJumpsException | ProgramTooLargeException e) {
             throw new CompilerHaltException(e);
         }
     }
 
+    /**
+     * Parses the source code into an unlinked RamCode object, keeping jump points and variables available to tools
+     * that need more than the final ram file (e.g. the {@link MicrocodeEngine} region report). Macros and subroutines
+     * are expanded by the {@link Inliner}.
+     *
+     * @param sourceLines {@link List} of String objects containing lines of JohnnyScript code
+     * @return RamCode object containing all parsed code, variables and jump points
+     */
+    static RamCode parse(List<String> sourceLines) throws InvalidScriptException, DuplicateVariableException, VariableNotInitializedException, DuplicateJumpPointException {
+        return new Inliner(sourceLines).compile(RamCode.MAX_LINES + 1);
+    }
+
+    /**
+     * Parses a single line of source code (without comments) into the RamCode object. Jump points of a macro or
+     * subroutine body get a prefix per copy of the body, so the same body can be placed several times.
+     *
+     * @param code RamCode object containing the output code
+     * @param lineNumber the line number used in error messages
+     * @param line the line of source code
+     * @param prefix prefix for jump points and for jumps to local jump points, empty outside of bodies
+     * @param localJumpPoints names of the jump points defined in the body
+     */
+    static void parseLine(RamCode code, int lineNumber, String line, String prefix, Set<String> localJumpPoints) throws InvalidScriptException, DuplicateVariableException, VariableNotInitializedException, DuplicateJumpPointException {
+        if (line.contains(VARIABLE_DELIMITER)) {
+            handleVariable(code, lineNumber, line);
+        } else {
+            if (line.contains(JUMP_POINT_DELIMITER)) {
+                // handle jump point
+                String jpName = line.replace(":", "");
+                code.addJumpPoint(prefix + jpName);
+            } else {
+                // check if jump, if yes handle accordingly
+                String[] parts = line.split(" ");
+                if(Codes.valueOf(parts[0].toUpperCase()).codeOrdinal == Codes.JMP.codeOrdinal) {
+                    code.addJump(localJumpPoints.contains(parts[1]) ? prefix + parts[1] : parts[1]);
+                } else code.addCode(encode(line, true)); // else just add the code as is
+            }
+        }
+    }
+
     /**
      * Handles the case where the compiler encounters a line containing a variable. If the delimiter is at the beginning
      * of the line, the line is for initializing a new variable. If the delimiter is preceded by some String, that string
@@ -105,7 +160,7 @@ public class JohnnyScript {
      * @param line Line of JohnnyScript code
      * @return compiled line of .ram code or null if line is a comment
      */
-    private static String decomment(String line) {
+    static String decomment(String line) {
         if (line.contains(LINE_COMMENT_DELIMITER)) {
             /* Separate code from comment */
             int commentStart = line.indexOf(LINE_COMMENT_DELIMITER);
@@ -127,6 +182,9 @@ public class JohnnyScript {
     private static String encode(String line, boolean appendLow) throws InvalidScriptException {
         String[] parts = line.split(" ");
         if (parts.length > 2) throw new InvalidScriptException("Syntax error (too many parts): " + line);
+        if (Codes.isBankSwitch(Codes.valueOf(parts[0].toUpperCase()).codeOrdinal)) {
+            throw new InvalidScriptException("Bank switches are inserted by the compiler: " + line);
+        }
         if (parts.length == 1) {
             String output = Codes.valueOf(parts[0].toUpperCase()).getCode();
             if (appendLow) output = output + "000";
@@ -144,11 +202,12 @@ public class JohnnyScript {
      * Generates the output file named like the input file
      *
      * @param filename Name of the input file to base the output file on (file ending will be stripped)
+     * @param extension file ending of the output file
      * @throws IOException if filesystem error
      */
-    private static void writeOutFile(String filename, List<String> lines) throws IOException {
+    private static void writeOutFile(String filename, String extension, List<String> lines) throws IOException {
         String name = filename.substring(0, filename.indexOf('.'));
-        String outputFile = name + OUTPUT_EXTENSION;
+        String outputFile = name + extension;
         Path outputPath = FileSystems.getDefault().getPath(outputFile);
         Files.write(outputPath, lines);
     }
@@ -176,6 +235,23 @@ public class JohnnyScript {
         return path;
     }
 
+    /**
+     * Loads the rule database given with the -rules option
+     *
+     * @param args String array of program arguments
+     * @return the loaded database or an empty one if the option isn't given
+     * @throws IOException if the rule file can't be read
+     * @throws InvalidRuleException if the rule file contains an invalid rule
+     */
+    private static RuleDatabase getRules(String[] args) throws IOException, InvalidRuleException {
+        for (int i = 1; i < args.length - 1; i++) {
+            if (args[i].equals(RULES_OPTION)) {
+                return RuleDatabase.load(FileSystems.getDefault().getPath(args[i + 1]));
+            }
+        }
+        return new RuleDatabase();
+    }
+
     /**
      * Checks if the given filename is for a readable file that can be used to compile
      *
@@ -190,7 +266,8 @@ public class JohnnyScript {
     }
 
     enum Codes {
-        TAKE(1), ADD(2), SUB(3), SAVE(4), JMP(5), TST(6), INC(7), DEC(8), NULL(9), HLT(10);
+        TAKE(1), ADD(2), SUB(3), SAVE(4), JMP(5), TST(6), INC(7), DEC(8), NULL(9), HLT(10),
+        DBANK(11), CBANK(12); // bank switches of the extended target, only inserted by the BankedLinker
 
         int codeOrdinal = 0;
 
@@ -201,6 +278,14 @@ public class JohnnyScript {
         public String getCode() {
             return String.valueOf(codeOrdinal);
         }
+
+        /**
+         * @param opcode numeric opcode
+         * @return true if the opcode is DBANK or CBANK
+         */
+        static boolean isBankSwitch(int opcode) {
+            return opcode == DBANK.codeOrdinal || opcode == CBANK.codeOrdinal;
+        }
     }
 
 }
@@ -211,13 +296,16 @@ public class JohnnyScript {
  */
 class RamCode {
 
-    private static final int MAX_LINES = 999;
+    static final int MAX_LINES = 999;
+    static final String VARIABLE_REFERENCE = "#";
+    static final String CODE_REFERENCE = "@";
 
     private static int writeIndex; // keeps track of the current line
 
     private final ArrayList<String> code;
     private final Map<String, Integer> variables;
     private final Map<String, Integer> varLoc;
+    private final Map<String, String> jumpVariables; // variables holding a jump to a jump point instead of a number
     private final Map<String, Integer> jumpPoints;
     private final Map<String, List<Integer>> jumps;
 
@@ -228,6 +316,7 @@ class RamCode {
         code = new ArrayList<>();
         variables = new LinkedHashMap<>();
         varLoc = new LinkedHashMap<>();
+        jumpVariables = new LinkedHashMap<>();
         jumpPoints = new LinkedHashMap<>();
         jumps = new LinkedHashMap<>();
     }
@@ -256,7 +345,19 @@ class RamCode {
     }
 
     /**
-     * Combines the instruction with the address the variable with the given name is stored at
+     * Adds a variable that is initialized to a jump to the given jump point, e.g. the return jump of a subroutine call
+     * @param name Name of the variable
+     * @param jpName Jump point the variable's jump leads to
+     * @throws DuplicateVariableException on attempting to initialize a variable with the name of a pre-existing one
+     */
+    void addJumpVar(String name, String jpName) throws DuplicateVariableException {
+        addVar(name, 0);
+        jumpVariables.put(name, jpName);
+    }
+
+    /**
+     * Adds the instruction with a reference to the variable with the given name. The reference is resolved to the
+     * address the variable is stored at when linking, so that a linker can place the variable anywhere.
      * @param instruction Any valid instruction
      * @param var Any initialized variable
      * @throws VariableNotInitializedException if the variable has not been defined beforehand
@@ -265,11 +366,20 @@ class RamCode {
         if (!variables.containsKey(var)) {
             throw new VariableNotInitializedException("Variable has not been initialized: " + var);
         } else {
-            int line = varLoc.get(var);
-            code.add(instruction + String.format("%03d", line));
+            code.add(instruction + VARIABLE_REFERENCE + var);
         }
     }
 
+    /**
+     * Adds the instruction with the address of the given jump point as operand, so that the code can modify the
+     * instruction at the jump point. The reference is resolved when linking.
+     * @param instruction Any valid instruction
+     * @param jpName Jump point whose address is used
+     */
+    void addCodeWithJumpPoint(String instruction, String jpName) {
+        code.add(instruction + CODE_REFERENCE + jpName);
+    }
+
     /**
      * Defines a jump point at the current location in the code list
      * @param jpName the name of the jump point
@@ -304,6 +414,70 @@ class RamCode {
         code.add(jpName + ":");
     }
 
+    /**
+     * @param line line of the code list
+     * @return true if the line is a placeholder for a jump
+     */
+    static boolean isPlaceholder(String line) {
+        return line.endsWith(":") && !isVariableReference(line);
+    }
+
+    /**
+     * @param line line of the code list
+     * @return true if the line is an instruction with a "op#name" reference to a variable
+     */
+    static boolean isVariableReference(String line) {
+        return line.contains(VARIABLE_REFERENCE);
+    }
+
+    /**
+     * @param line line of the code list
+     * @return true if the line is an instruction with a "op@name" reference to the address of a jump point
+     */
+    static boolean isCodeReference(String line) {
+        return line.contains(CODE_REFERENCE) && !isPlaceholder(line) && !isVariableReference(line);
+    }
+
+    /**
+     * @param line instruction line of the code list
+     * @return the opcode of the instruction
+     */
+    static int opcodeOf(String line) {
+        return Integer.parseInt(line.substring(0, operandStart(line)));
+    }
+
+    /**
+     * @param line instruction line of the code list
+     * @return the operand of the instruction, either "#name" for a variable, "@name" for a jump point or the three
+     * digit address
+     */
+    static String operandOf(String line) {
+        return line.substring(operandStart(line));
+    }
+
+    private static int operandStart(String line) {
+        if (isVariableReference(line)) {
+            return line.indexOf(VARIABLE_REFERENCE);
+        }
+        return isCodeReference(line) ? line.indexOf(CODE_REFERENCE) : line.length() - 3;
+    }
+
+    /**
+     * @param line numeric line of the code list
+     * @return the address of the instruction
+     */
+    static int addressOf(String line) {
+        return Integer.parseInt(line.substring(line.length() - 3));
+    }
+
+    /**
+     * @param line instruction line of the code list
+     * @return the name of the variable the instruction refers to
+     */
+    static String variableOf(String line) {
+        return line.substring(line.indexOf(VARIABLE_REFERENCE) + 1);
+    }
+
     /**
      * Initializes a List of Strings by putting in the empty address "000" until MAX_LINES is reached
      */
@@ -321,8 +495,14 @@ class RamCode {
      *
      * @return ram file
      * @throws InvalidJumpsException if there is a jump instruction for a jump point that has not been defined
+     * @throws ProgramTooLargeException if line zero, the variables and the code don't fit into MAX_LINES + 1 lines
      */
-    List<String> getCode() throws InvalidJumpsException {
+    List<String> getCode() throws InvalidJumpsException, ProgramTooLargeException {
+        int size = 1 + variables.size() + code.size();
+        if (size > MAX_LINES + 1) {
+            throw new ProgramTooLargeException("Program needs " + size + " lines but only " + (MAX_LINES + 1) + " are available");
+        }
+
         List<String> output = new ArrayList<>();
         initializeZeros(output);
 
@@ -332,21 +512,29 @@ class RamCode {
         output.set(writeIndex, generateLineZero());
         writeIndex++;
 
+        List<String> invalid = new ArrayList<>();
+
         // lambda instruction that prints every variable in the map formatted as 3 digits
         variables.forEach((k, v) -> {
+            if (jumpVariables.containsKey(k)) {
+                v = JohnnyScript.Codes.JMP.codeOrdinal * 1000 + jumpPointAddress(jumpVariables.get(k), invalid);
+            }
             output.set(writeIndex, String.format("%03d", v));
             writeIndex++;
         });
 
-        // loop that appends all code from the code list to the variables
+        // loop that appends all code from the code list to the variables, resolving variable and jump point references
         for (String loc : code
                 ) {
+            if (isVariableReference(loc)) {
+                loc = opcodeOf(loc) + String.format("%03d", varLoc.get(variableOf(loc)));
+            } else if (isCodeReference(loc)) {
+                loc = opcodeOf(loc) + String.format("%03d", jumpPointAddress(loc.substring(operandStart(loc) + 1), invalid));
+            }
             output.set(writeIndex, loc);
             writeIndex++;
         }
 
-        List<String> invalid = new ArrayList<>();
-
         // lambda instruction that replaces each jump with the jmp instruction and the address the according jump point is located at
         jumps.forEach((jpName,jumpList) -> {
             if(!jumpPoints.containsKey(jpName)) {
@@ -369,6 +557,91 @@ class RamCode {
         return output;
     }
 
+    /**
+     * @param jpName name of a jump point
+     * @param invalid list the name is added to if the jump point has not been defined
+     * @return address of the jump point in the ram file, 0 if it has not been defined
+     */
+    private int jumpPointAddress(String jpName, List<String> invalid) {
+        if (!jumpPoints.containsKey(jpName)) {
+            invalid.add(jpName);
+            return 0;
+        }
+        return 1 + variables.size() + jumpPoints.get(jpName);
+    }
+
+    /**
+     * @return true if the code refers to the address of a jump point, i.e. it modifies its own instructions
+     */
+    boolean hasCodeReferences() {
+        return !jumpVariables.isEmpty() || code.stream().anyMatch(RamCode::isCodeReference);
+    }
+
+    /**
+     * @return read-only view of the code list, containing "name:" placeholders for jumps, "op#name" references to
+     * variables and "op@name" references to jump points
+     */
+    List<String> getCodeLines() {
+        return Collections.unmodifiableList(code);
+    }
+
+    /**
+     * @return number of variables placed in front of the code
+     */
+    int getVariableCount() {
+        return variables.size();
+    }
+
+    /**
+     * @return read-only map of variable names to their initial values in order of declaration
+     */
+    Map<String, Integer> getVariables() {
+        return Collections.unmodifiableMap(variables);
+    }
+
+    /**
+     * @return read-only map of jump point names to their index in the code list
+     */
+    Map<String, Integer> getJumpPointLines() {
+        return Collections.unmodifiableMap(jumpPoints);
+    }
+
+    /**
+     * @param line index in the code list
+     * @return true if a jump point has been defined at the line
+     */
+    boolean isJumpPoint(int line) {
+        return jumpPoints.containsValue(line);
+    }
+
+    /**
+     * Replaces a range of the code list and moves all jump points and jumps behind the range accordingly. The range must
+     * not contain jump placeholders and jump points may only be defined at its first line
+     *
+     * @param from index of the first line to replace
+     * @param to index after the last line to replace
+     * @param replacement lines of numeric ram code to insert instead
+     */
+    void replaceLines(int from, int to, List<String> replacement) {
+        code.subList(from, to).clear();
+        code.addAll(from, replacement);
+
+        int shift = replacement.size() - (to - from);
+        jumpPoints.replaceAll((jpName, line) -> line >= to ? line + shift : line);
+        jumps.values().forEach(jumpLines -> jumpLines.replaceAll(line -> line >= to ? line + shift : line));
+    }
+
+    /**
+     * Resolves every jump point to the absolute address it will have in the ram file returned by {@link #getCode()}
+     *
+     * @return map of jump point names to ram addresses in order of definition
+     */
+    Map<String, Integer> getJumpPointAddresses() {
+        Map<String, Integer> addresses = new LinkedHashMap<>();
+        jumpPoints.forEach((jpName, line) -> addresses.put(jpName, 1 + variables.size() + line));
+        return addresses;
+    }
+
     /**
      * Generates the first line in the output file that points to the first line after all variables
      * @return ram code with jump to first line
@@ -418,3 +691,9 @@ class InvalidJumpsException extends Exception {
         super(message);
     }
 }
+
+class ProgramTooLargeException extends Exception {
+    ProgramTooLargeException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,447 @@
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Runs ram files on a model of the Johnny Simulator control unit. Instead of executing macro instructions directly, every
+ * instruction is fetched and executed as the sequence of micro-operations of the simulator's standard microcode, so the
+ * reported clock cycles are exact (one micro-operation takes one cycle).
+ *
+ * The microcode of all instructions is precompiled into a single flat int table when the class is loaded, so executing a
+ * program doesn't allocate anything per step.
+ *
+ * Besides the classic single-bank ram file the engine runs the banked files of the extended target (see
+ * {@link BankedLinker}): the memory holds every bank of {@link #MEMORY_SIZE} cells in one flat int array. Instructions
+ * are fetched from the code bank and read and write the data bank, DBANK selects the data bank and CBANK selects the
+ * code bank the next JMP continues in. A classic program never switches banks and runs exactly as before.
+ */
+public class MicrocodeEngine {
+
+    static final int MEMORY_SIZE = 1000; // cells per bank
+    static final int MAX_BANKS = 100;
+    static final int MAX_VALUE = 19999; // largest value a memory cell or the accumulator can hold
+    static final long DEFAULT_CYCLE_LIMIT = 100_000_000L;
+
+    private static final String TRACE_OPTION = "-trace";
+    private static final String TRACE_EXTENSION = ".trace";
+
+    private static final int VALUE_RANGE = MAX_VALUE + 1;
+    private static final int ADDRESS_RANGE = 1000; // instructions are stored as opcode * 1000 + address
+
+    // micro-operations of the Johnny control unit
+    static final int DB_RAM = 0;        // db->ram
+    static final int RAM_DB = 1;        // ram->db
+    static final int DB_INS = 2;        // db->ins
+    static final int INS_AB = 3;        // ins->ab
+    static final int INS_MC = 4;        // ins->mc
+    static final int MC_ZERO = 5;       // mc:=0
+    static final int PC_AB = 6;         // pc->ab
+    static final int PC_INC = 7;        // pc++
+    static final int ZERO_PC_INC = 8;   // =0:pc++
+    static final int INS_PC = 9;        // ins->pc
+    static final int ACC_ZERO = 10;     // acc:=0
+    static final int PLUS = 11;         // plus
+    static final int MINUS = 12;        // minus
+    static final int ACC_DB = 13;       // acc->db
+    static final int ACC_INC = 14;      // acc++
+    static final int ACC_DEC = 15;      // acc--
+    static final int DB_ACC = 16;       // db->acc
+    static final int STOP = 17;         // stopp
+    static final int INS_DBANK = 18;    // ins->dbank (extended target)
+    static final int INS_CBANK = 19;    // ins->cbank (extended target)
+
+    private static final int[] FETCH = {PC_AB, RAM_DB, DB_INS, INS_MC};
+
+    /** Flat microcode table: the fetch cycle followed by the micro-operations of every instruction */
+    private static final int[] MICROCODE;
+    /** Offset of the first micro-operation of an opcode in {@link #MICROCODE} (indexed by opcode) */
+    private static final int[] START;
+    /** Index after the last micro-operation of an opcode in {@link #MICROCODE} (indexed by opcode) */
+    private static final int[] END;
+    /** Clock cycles of a complete instruction including its fetch (indexed by opcode, 0 for invalid opcodes) */
+    static final int[] CYCLES;
+    /** Whether an instruction writes to the memory cell it addresses (indexed by opcode) */
+    private static final boolean[] WRITES;
+
+    static {
+        Map<JohnnyScript.Codes, int[]> microcode = new LinkedHashMap<>();
+        microcode.put(JohnnyScript.Codes.TAKE, new int[]{INS_AB, RAM_DB, DB_ACC, PC_INC, MC_ZERO});
+        microcode.put(JohnnyScript.Codes.ADD, new int[]{INS_AB, RAM_DB, PLUS, PC_INC, MC_ZERO});
+        microcode.put(JohnnyScript.Codes.SUB, new int[]{INS_AB, RAM_DB, MINUS, PC_INC, MC_ZERO});
+        microcode.put(JohnnyScript.Codes.SAVE, new int[]{INS_AB, ACC_DB, DB_RAM, PC_INC, MC_ZERO});
+        microcode.put(JohnnyScript.Codes.JMP, new int[]{INS_PC, MC_ZERO});
+        microcode.put(JohnnyScript.Codes.TST, new int[]{INS_AB, RAM_DB, DB_ACC, ZERO_PC_INC, PC_INC, MC_ZERO});
+        microcode.put(JohnnyScript.Codes.INC, new int[]{INS_AB, RAM_DB, DB_ACC, ACC_INC, ACC_DB, DB_RAM, PC_INC, MC_ZERO});
+        microcode.put(JohnnyScript.Codes.DEC, new int[]{INS_AB, RAM_DB, DB_ACC, ACC_DEC, ACC_DB, DB_RAM, PC_INC, MC_ZERO});
+        microcode.put(JohnnyScript.Codes.NULL, new int[]{INS_AB, ACC_ZERO, ACC_DB, DB_RAM, PC_INC, MC_ZERO});
+        microcode.put(JohnnyScript.Codes.HLT, new int[]{STOP});
+        microcode.put(JohnnyScript.Codes.DBANK, new int[]{INS_DBANK, PC_INC, MC_ZERO});
+        microcode.put(JohnnyScript.Codes.CBANK, new int[]{INS_CBANK, PC_INC, MC_ZERO});
+
+        int opcodes = JohnnyScript.Codes.values().length + 1;
+        START = new int[opcodes];
+        END = new int[opcodes];
+        CYCLES = new int[opcodes];
+        WRITES = new boolean[opcodes];
+
+        int size = FETCH.length;
+        for (int[] ops : microcode.values()) {
+            size += ops.length;
+        }
+        MICROCODE = new int[size];
+        System.arraycopy(FETCH, 0, MICROCODE, 0, FETCH.length);
+
+        int offset = FETCH.length;
+        for (Map.Entry<JohnnyScript.Codes, int[]> entry : microcode.entrySet()) {
+            int opcode = entry.getKey().codeOrdinal;
+            int[] ops = entry.getValue();
+            System.arraycopy(ops, 0, MICROCODE, offset, ops.length);
+            START[opcode] = offset;
+            END[opcode] = offset + ops.length;
+            CYCLES[opcode] = FETCH.length + ops.length;
+            for (int op : ops) {
+                WRITES[opcode] |= op == DB_RAM;
+            }
+            offset += ops.length;
+        }
+    }
+
+    private final int[] memory; // all banks, bank b starts at b * MEMORY_SIZE
+    private final int banks;
+
+    // registers of the control unit
+    private int codeBank;
+    private int nextCodeBank; // committed to codeBank by the next ins->pc
+    private int dataBank;
+    private int pc;
+    private int ab;
+    private int db;
+    private int ins;
+    private int acc;
+    private boolean halted;
+
+    /**
+     * Constructor loads a ram file into memory. Every started block of MEMORY_SIZE lines is one bank, missing lines are
+     * filled with zeros
+     *
+     * @param ram lines of a ram file as generated by {@link RamCode#getCode()} or {@link BankedLinker#link()}
+     * @throws IllegalArgumentException if the file has too many lines or a line is not a valid memory value
+     */
+    MicrocodeEngine(List<String> ram) {
+        if (ram.size() > MAX_BANKS * MEMORY_SIZE) {
+            throw new IllegalArgumentException("Ram file exceeds " + MAX_BANKS * MEMORY_SIZE + " lines: " + ram.size());
+        }
+        banks = Math.max(1, (ram.size() + MEMORY_SIZE - 1) / MEMORY_SIZE);
+        memory = new int[banks * MEMORY_SIZE];
+        for (int i = 0; i < ram.size(); i++) {
+            int value = Integer.parseInt(ram.get(i).trim());
+            if (value < 0 || value > MAX_VALUE) {
+                throw new IllegalArgumentException("Invalid value at address " + i + ": " + ram.get(i));
+            }
+            memory[i] = value;
+        }
+    }
+
+    /**
+     * Executes the loaded program from address 0 until it reaches a HLT instruction
+     *
+     * @param maxCycles number of clock cycles after which the run is aborted
+     * @return report of the clock cycles the program used
+     * @throws InvalidInstructionException if the program counter reaches a value that isn't an instruction or a bank
+     * switch to a bank that doesn't exist
+     * @throws CycleLimitExceededException if the program doesn't halt within maxCycles
+     */
+    CycleReport run(long maxCycles) throws InvalidInstructionException, CycleLimitExceededException {
+        return run(maxCycles, null);
+    }
+
+    /**
+     * Executes the loaded program from address 0 until it reaches a HLT instruction and records every executed
+     * instruction
+     *
+     * @param maxCycles number of clock cycles after which the run is aborted
+     * @param trace recorder the run is traced to, null to run without trace
+     * @return report of the clock cycles the program used
+     * @throws InvalidInstructionException if the program counter reaches a value that isn't an instruction or a bank
+     * switch to a bank that doesn't exist
+     * @throws CycleLimitExceededException if the program doesn't halt within maxCycles
+     */
+    CycleReport run(long maxCycles, TraceRecorder trace) throws InvalidInstructionException, CycleLimitExceededException {
+        CycleReport report = new CycleReport(memory.length);
+        if (trace != null) {
+            trace.begin(memory);
+        }
+
+        while (!halted) {
+            int address = codeBank * MEMORY_SIZE + pc;
+            execute(0, FETCH.length);
+
+            int opcode = ins / ADDRESS_RANGE;
+            if (opcode >= CYCLES.length || CYCLES[opcode] == 0 || (JohnnyScript.Codes.isBankSwitch(opcode)
+                    && ins % ADDRESS_RANGE >= banks)) {
+                throw new InvalidInstructionException("Invalid instruction " + ins + " at address " + address);
+            }
+            if (trace == null) {
+                execute(START[opcode], END[opcode]);
+            } else {
+                int target = dataBank * MEMORY_SIZE + ins % ADDRESS_RANGE;
+                int oldValue = memory[target];
+                int oldAcc = acc;
+                execute(START[opcode], END[opcode]);
+                trace.record(address, opcode, WRITES[opcode] ? target : -1, oldValue, memory[target], oldAcc, acc);
+            }
+
+            report.record(address, opcode, CYCLES[opcode]);
+            if (report.getCycles() > maxCycles) {
+                throw new CycleLimitExceededException("Program did not halt within " + maxCycles + " cycles");
+            }
+        }
+
+        return report;
+    }
+
+    /**
+     * Executes the micro-operations in the given range of the microcode table
+     *
+     * @param from index of the first micro-operation
+     * @param to index after the last micro-operation
+     */
+    private void execute(int from, int to) {
+        for (int i = from; i < to; i++) {
+            switch (MICROCODE[i]) {
+                case DB_RAM: memory[ab] = db; break;
+                case RAM_DB: db = memory[ab]; break;
+                case DB_INS: ins = db; break;
+                case INS_AB: ab = dataBank * MEMORY_SIZE + ins % ADDRESS_RANGE; break;
+                case INS_MC: break; // dispatch is done by the caller using the precompiled table
+                case MC_ZERO: break; // the next fetch starts at table index 0
+                case PC_AB: ab = codeBank * MEMORY_SIZE + pc; break;
+                case PC_INC: pc = (pc + 1) % MEMORY_SIZE; break;
+                case ZERO_PC_INC: if (acc == 0) pc = (pc + 1) % MEMORY_SIZE; break;
+                case INS_PC: pc = ins % ADDRESS_RANGE; codeBank = nextCodeBank; break;
+                case ACC_ZERO: acc = 0; break;
+                case PLUS: acc = (acc + db) % VALUE_RANGE; break;
+                case MINUS: acc = (acc - db + VALUE_RANGE) % VALUE_RANGE; break;
+                case ACC_DB: db = acc; break;
+                case ACC_INC: acc = (acc + 1) % VALUE_RANGE; break;
+                case ACC_DEC: acc = (acc + VALUE_RANGE - 1) % VALUE_RANGE; break;
+                case DB_ACC: acc = db; break;
+                case STOP: halted = true; break;
+                case INS_DBANK: dataBank = ins % ADDRESS_RANGE; break;
+                case INS_CBANK: nextCodeBank = ins % ADDRESS_RANGE; break;
+                default: throw new IllegalStateException("Unknown micro-operation " + MICROCODE[i]);
+            }
+        }
+    }
+
+    /**
+     * @param address memory address to read, addresses of bank b start at b * MEMORY_SIZE
+     * @return current value stored at the address
+     */
+    int readMemory(int address) {
+        return memory[address];
+    }
+
+    int getAccumulator() {
+        return acc;
+    }
+
+    /**
+     * Runs every file given as argument and prints its cycle report. JohnnyScript files (.jns) are compiled first, which
+     * additionally allows the report to list the cycles spent between jump points. With the -trace option every run is
+     * recorded to a .trace file named like the input file, see {@link TraceReplay}.
+     *
+     * @param args paths of .jns, .ram or banked .xram files and optionally -trace
+     * @throws IOException if a file can't be read or a trace can't be written
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("No argument given.\nUsage: java MicrocodeEngine [-trace] file...");
+            throw new IllegalArgumentException();
+        }
+
+        boolean trace = Arrays.asList(args).contains(TRACE_OPTION);
+        for (String filename : args) {
+            if (filename.equals(TRACE_OPTION)) {
+                continue;
+            }
+            Path path = FileSystems.getDefault().getPath(filename);
+            List<String> lines = Files.readAllLines(path);
+            try {
+                List<String> ram;
+                Map<String, Integer> jumpPoints;
+                if (filename.endsWith(".jns")) {
+                    RamCode code = JohnnyScript.parse(lines);
+                    ram = code.getCode();
+                    jumpPoints = code.getJumpPointAddresses();
+                } else {
+                    ram = lines;
+                    jumpPoints = new LinkedHashMap<>();
+                }
+                CycleReport report;
+                if (trace) {
+                    String name = path.getFileName().toString();
+                    int extension = name.lastIndexOf('.');
+                    Path tracePath = path.resolveSibling((extension < 0 ? name : name.substring(0, extension)) + TRACE_EXTENSION);
+                    try (TraceRecorder recorder = TraceRecorder.open(tracePath)) {
+                        report = new MicrocodeEngine(ram).run(DEFAULT_CYCLE_LIMIT, recorder);
+                    }
+                } else {
+                    report = new MicrocodeEngine(ram).run(DEFAULT_CYCLE_LIMIT);
+                }
+                System.out.println(path.getFileName());
+                System.out.print(report.format(ram, jumpPoints));
+            } catch (Exception e) {
+                throw new SimulationHaltException(filename, e);
+            }
+        }
+    }
+}
+
+/**
+ * Collects the clock cycles of a program run per executed address, per opcode and in total
+ */
+class CycleReport {
+
+    static final String START_REGION = "(start)";
+
+    private final long[] cyclesByAddress;
+    private final long[] executionsByAddress;
+    private final long[] cyclesByOpcode;
+    private final long[] executionsByOpcode;
+    private long cycles;
+    private long instructions;
+
+    /**
+     * Constructor initializes the counters
+     * @param memorySize number of addresses that can be executed
+     */
+    CycleReport(int memorySize) {
+        cyclesByAddress = new long[memorySize];
+        executionsByAddress = new long[memorySize];
+        cyclesByOpcode = new long[JohnnyScript.Codes.values().length + 1];
+        executionsByOpcode = new long[cyclesByOpcode.length];
+    }
+
+    /**
+     * Counts one executed instruction
+     * @param address address the instruction was fetched from
+     * @param opcode opcode of the instruction
+     * @param instructionCycles clock cycles the instruction took including its fetch
+     */
+    void record(int address, int opcode, int instructionCycles) {
+        cyclesByAddress[address] += instructionCycles;
+        executionsByAddress[address]++;
+        cyclesByOpcode[opcode] += instructionCycles;
+        executionsByOpcode[opcode]++;
+        cycles += instructionCycles;
+        instructions++;
+    }
+
+    long getCycles() {
+        return cycles;
+    }
+
+    long getInstructions() {
+        return instructions;
+    }
+
+    long getCycles(int address) {
+        return cyclesByAddress[address];
+    }
+
+    long getExecutions(int address) {
+        return executionsByAddress[address];
+    }
+
+    long getCycles(JohnnyScript.Codes code) {
+        return cyclesByOpcode[code.codeOrdinal];
+    }
+
+    long getExecutions(JohnnyScript.Codes code) {
+        return executionsByOpcode[code.codeOrdinal];
+    }
+
+    /**
+     * Sums up the cycles per jump point region. A region starts at its jump point and ends at the next jump point in
+     * memory, everything before the first jump point is counted for {@link #START_REGION}
+     *
+     * @param jumpPoints map of jump point names to their ram addresses
+     * @return map of region names to cycles in order of their address
+     */
+    Map<String, Long> getCyclesByRegion(Map<String, Integer> jumpPoints) {
+        TreeMap<Integer, String> regionStarts = new TreeMap<>();
+        regionStarts.put(0, START_REGION);
+        // several jump points at the same address share one region, named after the first one
+        jumpPoints.forEach((jpName, address) -> regionStarts.putIfAbsent(address, jpName));
+
+        Map<String, Long> regions = new LinkedHashMap<>();
+        regionStarts.values().forEach(name -> regions.put(name, 0L));
+        for (int address = 0; address < cyclesByAddress.length; address++) {
+            if (cyclesByAddress[address] != 0) {
+                String region = regionStarts.floorEntry(address).getValue();
+                regions.put(region, regions.get(region) + cyclesByAddress[address]);
+            }
+        }
+        return regions;
+    }
+
+    /**
+     * Formats the report as text listing the program totals, the cycles per opcode, per region and per executed address
+     *
+     * @param ram the ram file the report was generated for
+     * @param jumpPoints map of jump point names to their ram addresses
+     * @return printable report
+     */
+    String format(List<String> ram, Map<String, Integer> jumpPoints) {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("program: %d cycles, %d instructions%n", cycles, instructions));
+
+        out.append("opcodes:\n");
+        for (JohnnyScript.Codes code : JohnnyScript.Codes.values()) {
+            if (getExecutions(code) != 0) {
+                out.append(String.format("  %-5s %12d x %12d cycles%n", code, getExecutions(code), getCycles(code)));
+            }
+        }
+
+        out.append("regions:\n");
+        getCyclesByRegion(jumpPoints).forEach((region, regionCycles) ->
+                out.append(String.format("  %-20s %12d cycles%n", region, regionCycles)));
+
+        out.append("instructions:\n");
+        for (int address = 0; address < executionsByAddress.length; address++) {
+            if (executionsByAddress[address] != 0) {
+                out.append(String.format("  %03d %6s %12d x %12d cycles%n", address, ram.get(address),
+                        executionsByAddress[address], cyclesByAddress[address]));
+            }
+        }
+        return out.toString();
+    }
+}
+
+class SimulationHaltException extends RuntimeException {
+
+    SimulationHaltException(String filename, Throwable cause) {
+        super("Simulation of " + filename + " halted!\n", cause);
+    }
+}
+
+class InvalidInstructionException extends Exception {
+
+    InvalidInstructionException(String message) {
+        super(message);
+    }
+}
+
+class CycleLimitExceededException extends Exception {
+
+    CycleLimitExceededException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,296 @@
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates random JohnnyScript programs for stress testing the compiler and the simulation. The same seed and settings
+ * always produce the same program.
+ *
+ * Valid programs always halt: loops are counted (the counter is reset on every entry and never touched by the loop body)
+ * and all other jumps are conditional jumps forward to a jump point in the same or an enclosing block.
+ */
+public class ProgramGenerator {
+
+    static final int MAX_LOOP_DEPTH = 3;
+    static final int MAX_LOOP_COUNT = 3;
+
+    private static final JohnnyScript.Codes[] DATA_CODES = {JohnnyScript.Codes.TAKE, JohnnyScript.Codes.ADD,
+            JohnnyScript.Codes.SUB, JohnnyScript.Codes.SAVE, JohnnyScript.Codes.INC, JohnnyScript.Codes.DEC,
+            JohnnyScript.Codes.NULL};
+    private static final double LOOP_SHARE = 0.3; // share of loops among the generated jump constructs
+    private static final int LOOP_OVERHEAD = 4 + MAX_LOOP_COUNT; // null, inc (count times), dec, tst, jmp
+
+    /**
+     * Defects that can be injected into a generated program, together with the exception the compiler has to throw
+     */
+    enum Defect {
+        DUPLICATE_VARIABLE(DuplicateVariableException.class),
+        UNDEFINED_VARIABLE(VariableNotInitializedException.class),
+        DUPLICATE_JUMP_POINT(DuplicateJumpPointException.class),
+        UNDEFINED_JUMP_POINT(InvalidJumpsException.class),
+        TOO_MANY_PARTS(InvalidScriptException.class),
+        UNKNOWN_INSTRUCTION(IllegalArgumentException.class),
+        TOO_LARGE(ProgramTooLargeException.class);
+
+        final Class<? extends Exception> expected;
+
+        Defect(Class<? extends Exception> expected) {
+            this.expected = expected;
+        }
+    }
+
+    private final Random random;
+    private final int size;
+    private final int variableCount;
+    private final double jumpDensity;
+    private final int labelFanIn;
+
+    // state of the program being generated
+    private List<String> lines;
+    private List<List<Label>> openLabels; // forward jump points that haven't been placed yet, per nesting level
+    private boolean[] declared;
+    private int budget;
+    private int loops;
+    private int labels;
+
+    /**
+     * Constructor sets the shape of the programs. The programs only compile if line zero, the variables (including one
+     * counter per loop) and the instructions fit into RamCode.MAX_LINES + 1 lines.
+     *
+     * @param seed seed for the random number generator
+     * @param size number of instructions per program, including the final HLT
+     * @param variableCount number of data variables (loop counters come on top)
+     * @param jumpDensity probability of a statement being a loop or a conditional jump instead of a data instruction
+     * @param labelFanIn number of jumps that target the same forward jump point
+     */
+    ProgramGenerator(long seed, int size, int variableCount, double jumpDensity, int labelFanIn) {
+        if (size < 1 || variableCount < 1 || jumpDensity < 0 || jumpDensity > 1 || labelFanIn < 1) {
+            throw new IllegalArgumentException("Invalid generator settings");
+        }
+        this.random = new Random(seed);
+        this.size = size;
+        this.variableCount = variableCount;
+        this.jumpDensity = jumpDensity;
+        this.labelFanIn = labelFanIn;
+    }
+
+    /**
+     * Generates the next valid program
+     *
+     * @return lines of JohnnyScript code
+     */
+    List<String> generate() {
+        lines = new ArrayList<>();
+        openLabels = new ArrayList<>();
+        declared = new boolean[variableCount];
+        budget = size - 1; // the final HLT
+        loops = 0;
+        labels = 0;
+
+        generateBlock(budget);
+
+        for (int i = 0; i < variableCount; i++) {
+            declare(i);
+        }
+        lines.add("hlt");
+        return lines;
+    }
+
+    /**
+     * Generates the next program and injects the given defect at a random line
+     *
+     * @param defect defect to inject
+     * @return lines of JohnnyScript code the compiler has to reject
+     */
+    List<String> generate(Defect defect) {
+        List<String> program = generate();
+        int line = random.nextInt(program.size());
+        switch (defect) {
+            case DUPLICATE_VARIABLE:
+                program.add(line, "#" + variable(random.nextInt(variableCount)) + " 1");
+                break;
+            case UNDEFINED_VARIABLE:
+                program.add(line, "add #undefined");
+                break;
+            case DUPLICATE_JUMP_POINT:
+                program.add(line, ":duplicate");
+                program.add(random.nextInt(program.size()), ":duplicate");
+                break;
+            case UNDEFINED_JUMP_POINT:
+                program.add(line, "jmp undefined");
+                break;
+            case TOO_MANY_PARTS:
+                program.add(line, "add 1 2");
+                break;
+            case UNKNOWN_INSTRUCTION:
+                program.add(line, "mul 1");
+                break;
+            case TOO_LARGE:
+                for (int i = 0; i <= RamCode.MAX_LINES; i++) {
+                    program.add(line, "hlt");
+                }
+                break;
+        }
+        return program;
+    }
+
+    /**
+     * Generates statements until the given number of instructions is used up and places all forward jump points that
+     * have been opened in this block
+     *
+     * @param blockBudget number of instructions the block may use
+     */
+    private void generateBlock(int blockBudget) {
+        List<Label> blockLabels = new ArrayList<>();
+        openLabels.add(blockLabels);
+        int end = budget - blockBudget;
+
+        while (budget > end) {
+            int remaining = budget - end;
+            if (random.nextDouble() < jumpDensity) {
+                if (random.nextDouble() < LOOP_SHARE && openLabels.size() <= MAX_LOOP_DEPTH && remaining > LOOP_OVERHEAD) {
+                    generateLoop(remaining);
+                } else if (remaining >= 2) {
+                    generateConditionalJump();
+                } else {
+                    generateDataInstruction();
+                }
+            } else {
+                generateDataInstruction();
+            }
+
+            placeLabels(blockLabels, false);
+        }
+
+        placeLabels(blockLabels, true);
+        openLabels.remove(openLabels.size() - 1);
+    }
+
+    /**
+     * Generates a loop that runs its body 1 to MAX_LOOP_COUNT times
+     */
+    private void generateLoop(int remaining) {
+        int count = 1 + random.nextInt(MAX_LOOP_COUNT);
+        String counter = "c" + loops;
+        String name = "l" + loops;
+        loops++;
+
+        lines.add("#" + counter + " 0");
+        lines.add("null #" + counter);
+        for (int i = 0; i < count; i++) {
+            lines.add("inc #" + counter);
+        }
+        lines.add(":" + name);
+        budget -= 1 + count;
+
+        int bodyBudget = 1 + random.nextInt(remaining - (4 + count));
+        generateBlock(bodyBudget);
+
+        lines.add("dec #" + counter);
+        lines.add("tst #" + counter);
+        lines.add("jmp " + name);
+        budget -= 3;
+    }
+
+    /**
+     * Generates a jump to a forward jump point that is taken if a random variable isn't zero. The jump point is shared
+     * with other jumps until it reaches the fan-in.
+     */
+    private void generateConditionalJump() {
+        Label target = null;
+        for (List<Label> level : openLabels) {
+            for (Label label : level) {
+                if (target == null && label.fanIn < labelFanIn) {
+                    target = label;
+                }
+            }
+        }
+        if (target == null) {
+            target = new Label("f" + labels);
+            labels++;
+            openLabels.get(openLabels.size() - 1).add(target);
+        }
+        target.fanIn++;
+
+        int var = random.nextInt(variableCount);
+        declare(var);
+        lines.add("tst #" + variable(var));
+        lines.add("jmp " + target.name);
+        budget -= 2;
+    }
+
+    private void generateDataInstruction() {
+        int var = random.nextInt(variableCount);
+        declare(var);
+        String code = DATA_CODES[random.nextInt(DATA_CODES.length)].name().toLowerCase();
+        lines.add(code + " #" + variable(var));
+        budget--;
+    }
+
+    /**
+     * Places the jump points of a block that reached their fan-in, or all of them at the end of the block
+     */
+    private void placeLabels(List<Label> blockLabels, boolean all) {
+        blockLabels.removeIf(label -> {
+            if (all || label.fanIn >= labelFanIn) {
+                lines.add(":" + label.name);
+                return true;
+            }
+            return false;
+        });
+    }
+
+    /**
+     * Declares a data variable with a random value, unless it has already been declared
+     */
+    private void declare(int var) {
+        if (!declared[var]) {
+            declared[var] = true;
+            lines.add("#" + variable(var) + " " + random.nextInt(1000));
+        }
+    }
+
+    private static String variable(int var) {
+        return "v" + var;
+    }
+
+    /**
+     * Writes a corpus of generated programs to a directory
+     *
+     * @param args output directory, number of programs, seed, size, variable count, jump density and label fan-in
+     * @throws IOException if filesystem error
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 7) {
+            System.err.println("Missing arguments.\nUsage: java ProgramGenerator directory count seed size variables jumpdensity fanin");
+            throw new IllegalArgumentException();
+        }
+
+        Path directory = FileSystems.getDefault().getPath(args[0]);
+        int count = Integer.parseInt(args[1]);
+        ProgramGenerator generator = new ProgramGenerator(Long.parseLong(args[2]), Integer.parseInt(args[3]),
+                Integer.parseInt(args[4]), Double.parseDouble(args[5]), Integer.parseInt(args[6]));
+
+        Files.createDirectories(directory);
+        for (int i = 0; i < count; i++) {
+            Files.write(directory.resolve(String.format("generated%04d.jns", i)), generator.generate());
+        }
+    }
+
+    /**
+     * Forward jump point together with the number of jumps targeting it
+     */
+    private static class Label {
+
+        final String name;
+        int fanIn;
+
+        Label(String name) {
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,429 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persistent collection of rewrite rules for straight-line windows of the RamCode instruction list. Each rule maps a
+ * canonical window to a shorter instruction sequence the {@link Superoptimizer} has proven to be equivalent, so applying
+ * the rules during compilation only takes a hash lookup per window.
+ *
+ * Rules are stored one per line, addresses are numbered in order of their first appearance in the window:
+ * <pre>
+ * live: TAKE 0, SAVE 1, TAKE 1 => TAKE 0, SAVE 1
+ * dead: TAKE 0, SAVE 0 =>
+ * </pre>
+ * "live" or "dead" tells whether the accumulator is read after the window.
+ */
+class RuleDatabase {
+
+    static final int MAX_WINDOW = 5; // longest window the Superoptimizer searches and apply looks up
+
+    static final JohnnyScript.Codes[] STRAIGHT_LINE_CODES = {JohnnyScript.Codes.TAKE, JohnnyScript.Codes.ADD,
+            JohnnyScript.Codes.SUB, JohnnyScript.Codes.SAVE, JohnnyScript.Codes.INC, JohnnyScript.Codes.DEC,
+            JohnnyScript.Codes.NULL};
+
+    private static final String RULE_DELIMITER = "=>";
+    private static final String LINE_COMMENT_DELIMITER = "//";
+
+    private final Map<String, String> rules;
+
+    /**
+     * Constructor initializes an empty database
+     */
+    RuleDatabase() {
+        rules = new LinkedHashMap<>();
+    }
+
+    /**
+     * Reads a rule database written by {@link #save(Path)}
+     *
+     * @param path Path of the rule file
+     * @return database containing all rules of the file
+     * @throws IOException if filesystem error
+     * @throws InvalidRuleException if a line of the file isn't a valid rule, its window is longer than MAX_WINDOW or its
+     * replacement isn't shorter than the window or isn't equivalent to it
+     */
+    static RuleDatabase load(Path path) throws IOException, InvalidRuleException {
+        RuleDatabase database = new RuleDatabase();
+        for (String line : Files.readAllLines(path)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith(LINE_COMMENT_DELIMITER)) {
+                continue;
+            }
+            String[] parts = line.split(RULE_DELIMITER, -1);
+            if (parts.length != 2) {
+                throw new InvalidRuleException("Invalid rule: " + line);
+            }
+            String key = parts[0].trim();
+            String replacement = parts[1].trim();
+            // parse and prove both sides once, so edited files are rejected here instead of miscompiling
+            verify(line, Window.parseKey(key), Window.parseSequence(replacement), Window.isAccLive(key));
+            database.rules.put(key, replacement);
+        }
+        return database;
+    }
+
+    /**
+     * Checks that a rule's window can be looked up, that the rule shrinks the code (so applying rules terminates) and
+     * that the replacement is equivalent to the window, using the same proof as the {@link Superoptimizer}
+     */
+    private static void verify(String rule, int[][] window, int[][] replacement, boolean accLive) throws InvalidRuleException {
+        if (window[0].length > MAX_WINDOW) {
+            throw new InvalidRuleException("Window is longer than " + MAX_WINDOW + " instructions: " + rule);
+        }
+        if (replacement[0].length >= window[0].length) {
+            throw new InvalidRuleException("Replacement isn't shorter than the window: " + rule);
+        }
+        int slotCount = 0;
+        for (int slot : window[1]) {
+            slotCount = Math.max(slotCount, slot + 1);
+        }
+        for (int slot : replacement[1]) {
+            if (slot >= slotCount) {
+                throw new InvalidRuleException("Replacement uses unknown slot: " + rule);
+            }
+        }
+        int[][] forms = Superoptimizer.affineForms(window[0], window[1], slotCount + 1);
+        if (!Superoptimizer.isEquivalent(forms, replacement[0], replacement[1], accLive)) {
+            throw new InvalidRuleException("Replacement isn't equivalent to the window: " + rule);
+        }
+    }
+
+    /**
+     * Writes all rules to the given file
+     *
+     * @param path Path of the rule file
+     * @throws IOException if filesystem error
+     */
+    void save(Path path) throws IOException {
+        List<String> lines = new ArrayList<>();
+        rules.forEach((key, replacement) -> lines.add(key + " " + RULE_DELIMITER + " " + replacement));
+        Files.write(path, lines);
+    }
+
+    /**
+     * Adds a proven rewrite
+     *
+     * @param window the window that can be rewritten
+     * @param replacement canonical instruction sequence as formatted by {@link Window#formatSequence(int[], int[])}
+     */
+    void put(Window window, String replacement) {
+        rules.put(window.key(), replacement);
+    }
+
+    boolean contains(Window window) {
+        return rules.containsKey(window.key());
+    }
+
+    int size() {
+        return rules.size();
+    }
+
+    /**
+     * Rewrites every window of the code that matches a rule, preferring longer windows. Code that uses an absolute
+     * address behind its variables is left as is, as rewriting moves all instructions after a window.
+     *
+     * @param code RamCode object whose code list is rewritten in place
+     * @return number of instructions saved
+     * @throws InvalidRuleException if a matching rule references an address the window doesn't have
+     */
+    int apply(RamCode code) throws InvalidRuleException {
+        if (rules.isEmpty() || addressesCode(code)) {
+            return 0;
+        }
+
+        int saved = 0;
+        int line = 0;
+        while (line < code.getCodeLines().size()) {
+            int runEnd = straightLineEnd(code, line);
+            String replacement = null;
+            Window window = null;
+            for (int length = Math.min(MAX_WINDOW, runEnd - line); length >= 2 && replacement == null; length--) {
+                window = new Window(code, line, line + length);
+                replacement = rules.get(window.key());
+            }
+
+            if (replacement == null) {
+                line++;
+            } else {
+                // stay at the same line, the rewritten code may match another rule
+                List<String> newLines = window.instantiate(replacement);
+                code.replaceLines(line, line + window.length(), newLines);
+                saved += window.length() - newLines.size();
+            }
+        }
+        return saved;
+    }
+
+    /**
+     * @return whether an instruction of the code addresses a cell at or behind the first instruction by absolute address
+     */
+    private static boolean addressesCode(RamCode code) {
+        int codeStart = 1 + code.getVariableCount();
+        for (String line : code.getCodeLines()) {
+            if (!RamCode.isPlaceholder(line) && !RamCode.isVariableReference(line) && !RamCode.isCodeReference(line)
+                    && RamCode.addressOf(line) >= codeStart) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Collects all distinct windows of 2 to maxLength straight-line instructions in the code
+     *
+     * @param code RamCode object to search
+     * @param maxLength longest window to collect
+     * @return windows in order of appearance, one per distinct key
+     */
+    static List<Window> findWindows(RamCode code, int maxLength) {
+        Set<String> keys = new LinkedHashSet<>();
+        List<Window> windows = new ArrayList<>();
+        for (int from = 0; from < code.getCodeLines().size(); from++) {
+            int runEnd = straightLineEnd(code, from);
+            for (int to = from + 2; to <= Math.min(runEnd, from + maxLength); to++) {
+                Window window = new Window(code, from, to);
+                if (keys.add(window.key())) {
+                    windows.add(window);
+                }
+            }
+        }
+        return windows;
+    }
+
+    /**
+     * Finds the end of the straight-line run starting at the given line. A run only contains instructions that neither
+     * change the control flow nor get skipped by TST, only addresses variables and is only entered at its first line.
+     *
+     * @param code RamCode object to search
+     * @param from index of the first line of the run
+     * @return index after the last line of the run (from if the line can't start a run)
+     */
+    private static int straightLineEnd(RamCode code, int from) {
+        int to = from;
+        while (to < code.getCodeLines().size() && isStraightLine(code, to) && (to == from || !code.isJumpPoint(to))) {
+            to++;
+        }
+        return to;
+    }
+
+    private static boolean isStraightLine(RamCode code, int line) {
+        List<String> lines = code.getCodeLines();
+        if (RamCode.isPlaceholder(lines.get(line))) {
+            return false;
+        }
+        if (line > 0 && !RamCode.isPlaceholder(lines.get(line - 1))
+                && RamCode.opcodeOf(lines.get(line - 1)) == JohnnyScript.Codes.TST.codeOrdinal) {
+            return false; // TST may skip this line
+        }
+        return Window.indexOf(RamCode.opcodeOf(lines.get(line))) >= 0 && RamCode.isVariableReference(lines.get(line));
+    }
+}
+
+/**
+ * A range of straight-line instructions in canonical form. Addresses are replaced by slots numbered in order of their
+ * first appearance, so windows that only differ in the variables they use share the same key.
+ */
+class Window {
+
+    private static final String ACC_LIVE = "live: ";
+    private static final String ACC_DEAD = "dead: ";
+    private static final String INSTRUCTION_DELIMITER = ", ";
+
+    final int start;
+    final int[] codes;      // index into RuleDatabase.STRAIGHT_LINE_CODES per instruction
+    final int[] slots;      // slot per instruction
+    final String[] operands; // operand per slot, see RamCode.operandOf(String)
+    final boolean accLive;
+
+    /**
+     * Constructor reads the window from the code list
+     *
+     * @param code RamCode object containing the window
+     * @param from index of the first line of the window
+     * @param to index after the last line of the window
+     */
+    Window(RamCode code, int from, int to) {
+        List<String> lines = code.getCodeLines();
+        start = from;
+        codes = new int[to - from];
+        slots = new int[to - from];
+
+        List<String> slotOperands = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            String operand = RamCode.operandOf(lines.get(i));
+            if (!slotOperands.contains(operand)) {
+                slotOperands.add(operand);
+            }
+            codes[i - from] = indexOf(RamCode.opcodeOf(lines.get(i)));
+            slots[i - from] = slotOperands.indexOf(operand);
+        }
+        operands = slotOperands.toArray(new String[0]);
+
+        accLive = isAccLive(lines, to);
+    }
+
+    /**
+     * Constructor for a window that isn't part of any code, used to describe search problems directly
+     *
+     * @param codes index into RuleDatabase.STRAIGHT_LINE_CODES per instruction
+     * @param slots slot per instruction
+     * @param accLive whether the accumulator is read after the window
+     */
+    Window(int[] codes, int[] slots, boolean accLive) {
+        this.start = 0;
+        this.codes = codes.clone();
+        this.slots = slots.clone();
+        this.accLive = accLive;
+        int slotCount = 0;
+        for (int slot : slots) {
+            slotCount = Math.max(slotCount, slot + 1);
+        }
+        operands = new String[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            operands[i] = String.format("%03d", i + 1);
+        }
+    }
+
+    int length() {
+        return codes.length;
+    }
+
+    int slotCount() {
+        return operands.length;
+    }
+
+    /**
+     * @return canonical key of the window, e.g. "live: TAKE 0, SAVE 1"
+     */
+    String key() {
+        return (accLive ? ACC_LIVE : ACC_DEAD) + formatSequence(codes, slots);
+    }
+
+    /**
+     * Converts a canonical replacement sequence into ram code using the operands of this window
+     *
+     * @param replacement canonical sequence, e.g. "TAKE 0, SAVE 1"
+     * @return lines of numeric ram code
+     * @throws InvalidRuleException if the replacement can't be parsed or uses a slot the window doesn't have
+     */
+    List<String> instantiate(String replacement) throws InvalidRuleException {
+        int[][] sequence = parseSequence(replacement);
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < sequence[0].length; i++) {
+            if (sequence[1][i] >= operands.length) {
+                throw new InvalidRuleException("Replacement uses unknown slot: " + replacement);
+            }
+            JohnnyScript.Codes code = RuleDatabase.STRAIGHT_LINE_CODES[sequence[0][i]];
+            lines.add(code.getCode() + operands[sequence[1][i]]);
+        }
+        return lines;
+    }
+
+    /**
+     * Formats an instruction sequence in canonical form
+     *
+     * @param codes index into RuleDatabase.STRAIGHT_LINE_CODES per instruction
+     * @param slots slot per instruction
+     * @return e.g. "TAKE 0, SAVE 1" or an empty String for the empty sequence
+     */
+    static String formatSequence(int[] codes, int[] slots) {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < codes.length; i++) {
+            if (i > 0) {
+                out.append(INSTRUCTION_DELIMITER);
+            }
+            out.append(RuleDatabase.STRAIGHT_LINE_CODES[codes[i]]).append(' ').append(slots[i]);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Parses a sequence formatted by {@link #formatSequence(int[], int[])}
+     *
+     * @param sequence canonical sequence
+     * @return array containing the code indices at [0] and the slots at [1]
+     * @throws InvalidRuleException if the sequence can't be parsed
+     */
+    static int[][] parseSequence(String sequence) throws InvalidRuleException {
+        if (sequence.isEmpty()) {
+            return new int[2][0];
+        }
+        String[] instructions = sequence.split(INSTRUCTION_DELIMITER);
+        int[][] parsed = new int[2][instructions.length];
+        for (int i = 0; i < instructions.length; i++) {
+            String[] parts = instructions[i].trim().split(" ");
+            try {
+                parsed[0][i] = indexOf(JohnnyScript.Codes.valueOf(parts[0]).codeOrdinal);
+                parsed[1][i] = Integer.parseInt(parts[1]);
+            } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                throw new InvalidRuleException("Invalid instruction in rule: " + instructions[i]);
+            }
+            if (parsed[0][i] < 0 || parsed[1][i] < 0) {
+                throw new InvalidRuleException("Invalid instruction in rule: " + instructions[i]);
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * Checks the liveness prefix of a key and parses its sequence
+     *
+     * @param key key formatted by {@link #key()}
+     * @return parsed sequence of the key
+     * @throws InvalidRuleException if the key can't be parsed
+     */
+    static int[][] parseKey(String key) throws InvalidRuleException {
+        if (!key.startsWith(ACC_LIVE.trim()) && !key.startsWith(ACC_DEAD.trim())) {
+            throw new InvalidRuleException("Rule doesn't state accumulator liveness: " + key);
+        }
+        return parseSequence(key.substring(ACC_LIVE.trim().length()).trim());
+    }
+
+    /**
+     * @param key key formatted by {@link #key()}
+     * @return whether the key is for windows after which the accumulator is read
+     */
+    static boolean isAccLive(String key) {
+        return key.startsWith(ACC_LIVE.trim());
+    }
+
+    /**
+     * The accumulator is dead after the window if the next instruction overwrites it without reading it first
+     */
+    private static boolean isAccLive(List<String> lines, int next) {
+        if (next >= lines.size() || RamCode.isPlaceholder(lines.get(next))) {
+            return true;
+        }
+        int opcode = RamCode.opcodeOf(lines.get(next));
+        return opcode != JohnnyScript.Codes.TAKE.codeOrdinal && opcode != JohnnyScript.Codes.TST.codeOrdinal
+                && opcode != JohnnyScript.Codes.INC.codeOrdinal && opcode != JohnnyScript.Codes.DEC.codeOrdinal
+                && opcode != JohnnyScript.Codes.NULL.codeOrdinal;
+    }
+
+    /**
+     * @param opcode numeric opcode
+     * @return index of the opcode in RuleDatabase.STRAIGHT_LINE_CODES or -1 if it isn't a straight-line instruction
+     */
+    static int indexOf(int opcode) {
+        for (int i = 0; i < RuleDatabase.STRAIGHT_LINE_CODES.length; i++) {
+            if (RuleDatabase.STRAIGHT_LINE_CODES[i].codeOrdinal == opcode) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
+
+class InvalidRuleException extends Exception {
+
+    InvalidRuleException(String message) {
+        super(message);
+    }
+}
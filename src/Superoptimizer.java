@@ -0,0 +1,301 @@
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Searches exhaustively for the shortest instruction sequence that is equivalent to a straight-line window of the RamCode
+ * instruction list and stores proven rewrites in a {@link RuleDatabase}.
+ *
+ * Candidates are enumerated by length and the enumeration of each length is split across cores with fork/join. A candidate
+ * first has to reproduce the window's results on a set of random machine states, only the few survivors are checked
+ * exactly. The exact check is a proof: all straight-line instructions are affine functions of the accumulator and the
+ * memory cells modulo {@link MicrocodeEngine#MAX_VALUE} + 1, so two sequences are equivalent iff their affine forms are equal.
+ */
+public class Superoptimizer {
+
+    static final long MAX_CANDIDATES = 20_000_000L; // largest number of candidates of one length that is searched
+
+    private static final int VALUE_RANGE = MicrocodeEngine.MAX_VALUE + 1;
+    private static final int TESTS = 16;
+    private static final long SPLIT_THRESHOLD = 1 << 12;
+    private static final long SEED = 0x4a6f686e6e79L;
+
+    private final ForkJoinPool pool;
+
+    /**
+     * Constructor sets the pool the search is run on
+     * @param pool ForkJoinPool to split the candidate enumeration across
+     */
+    Superoptimizer(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Searches the shortest sequence over the straight-line instructions and the window's addresses that leaves the
+     * memory (and the accumulator, if it's read afterwards) in the same state as the window
+     *
+     * @param window window to replace
+     * @return canonical replacement as formatted by {@link Window#formatSequence(int[], int[])} or null if there is no
+     * shorter sequence within {@link #MAX_CANDIDATES}
+     */
+    String search(Window window) {
+        int stateSize = window.slotCount() + 1;
+        int alphabet = RuleDatabase.STRAIGHT_LINE_CODES.length * window.slotCount();
+
+        Random random = new Random(SEED);
+        int[][] inputs = new int[TESTS][stateSize];
+        int[][] outputs = new int[TESTS][];
+        for (int test = 0; test < TESTS; test++) {
+            for (int i = 0; i < stateSize; i++) {
+                inputs[test][i] = random.nextInt(VALUE_RANGE);
+            }
+            outputs[test] = inputs[test].clone();
+            for (int i = 0; i < window.length(); i++) {
+                execute(window.codes[i], window.slots[i], outputs[test]);
+            }
+        }
+        int[][] forms = affineForms(window.codes, window.slots, stateSize);
+
+        long candidates = 1;
+        for (int length = 0; length < window.length() && candidates <= MAX_CANDIDATES; length++) {
+            Search search = new Search(window.accLive, alphabet, window.slotCount(), length, inputs, outputs, forms);
+            pool.invoke(new CandidateRange(search, 0, candidates));
+            long found = search.best.get();
+            if (found != Long.MAX_VALUE) {
+                int[] codes = new int[length];
+                int[] slots = new int[length];
+                search.decode(found, codes, slots);
+                return Window.formatSequence(codes, slots);
+            }
+            candidates *= alphabet;
+        }
+        return null;
+    }
+
+    /**
+     * Executes a straight-line instruction on a concrete machine state with the semantics of the MicrocodeEngine
+     *
+     * @param code index into RuleDatabase.STRAIGHT_LINE_CODES
+     * @param slot slot the instruction addresses
+     * @param state accumulator at [0] followed by the memory cell of every slot
+     */
+    static void execute(int code, int slot, int[] state) {
+        int cell = slot + 1;
+        switch (RuleDatabase.STRAIGHT_LINE_CODES[code]) {
+            case TAKE: state[0] = state[cell]; break;
+            case ADD: state[0] = (state[0] + state[cell]) % VALUE_RANGE; break;
+            case SUB: state[0] = (state[0] - state[cell] + VALUE_RANGE) % VALUE_RANGE; break;
+            case SAVE: state[cell] = state[0]; break;
+            case INC: state[cell] = (state[cell] + 1) % VALUE_RANGE; state[0] = state[cell]; break;
+            case DEC: state[cell] = (state[cell] + VALUE_RANGE - 1) % VALUE_RANGE; state[0] = state[cell]; break;
+            case NULL: state[cell] = 0; state[0] = 0; break;
+            default: throw new IllegalArgumentException("Not a straight-line instruction: " + code);
+        }
+    }
+
+    /**
+     * Computes the final state of an instruction sequence as affine forms of the initial state. Row i holds the
+     * coefficients of every initial state value followed by the constant for state value i.
+     *
+     * @param codes index into RuleDatabase.STRAIGHT_LINE_CODES per instruction
+     * @param slots slot per instruction
+     * @param stateSize number of state values (accumulator and slots)
+     * @return affine forms of the final state
+     */
+    static int[][] affineForms(int[] codes, int[] slots, int stateSize) {
+        int[][] forms = new int[stateSize][stateSize + 1];
+        for (int i = 0; i < stateSize; i++) {
+            forms[i][i] = 1;
+        }
+
+        for (int i = 0; i < codes.length; i++) {
+            int cell = slots[i] + 1;
+            int[] acc = forms[0];
+            switch (RuleDatabase.STRAIGHT_LINE_CODES[codes[i]]) {
+                case TAKE: forms[0] = forms[cell].clone(); break;
+                case ADD: for (int j = 0; j <= stateSize; j++) acc[j] = (acc[j] + forms[cell][j]) % VALUE_RANGE; break;
+                case SUB: for (int j = 0; j <= stateSize; j++) acc[j] = (acc[j] - forms[cell][j] + VALUE_RANGE) % VALUE_RANGE; break;
+                case SAVE: forms[cell] = acc.clone(); break;
+                case INC:
+                    forms[cell][stateSize] = (forms[cell][stateSize] + 1) % VALUE_RANGE;
+                    forms[0] = forms[cell].clone();
+                    break;
+                case DEC:
+                    forms[cell][stateSize] = (forms[cell][stateSize] + VALUE_RANGE - 1) % VALUE_RANGE;
+                    forms[0] = forms[cell].clone();
+                    break;
+                case NULL:
+                    forms[cell] = new int[stateSize + 1];
+                    forms[0] = new int[stateSize + 1];
+                    break;
+                default: throw new IllegalArgumentException("Not a straight-line instruction: " + codes[i]);
+            }
+        }
+        return forms;
+    }
+
+    /**
+     * Proves that an instruction sequence leaves the same state as the sequence the forms were computed for
+     *
+     * @param forms affine forms of the original sequence as computed by {@link #affineForms(int[], int[], int)}
+     * @param codes index into RuleDatabase.STRAIGHT_LINE_CODES per instruction of the other sequence
+     * @param slots slot per instruction of the other sequence
+     * @param accLive whether the accumulator has to be equal as well
+     * @return whether both sequences are equivalent
+     */
+    static boolean isEquivalent(int[][] forms, int[] codes, int[] slots, boolean accLive) {
+        int[][] candidateForms = affineForms(codes, slots, forms.length);
+        for (int i = accLive ? 0 : 1; i < forms.length; i++) {
+            if (!Arrays.equals(forms[i], candidateForms[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Searches the rule-less windows of every source file given as argument and adds all proven rewrites to the rule
+     * database, which can then be applied by the compiler.
+     *
+     * @param args path of the rule database followed by paths of .jns files
+     * @throws IOException if filesystem error
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Missing arguments.\nUsage: java Superoptimizer rulefile sourcefile...");
+            throw new IllegalArgumentException();
+        }
+
+        Path rulePath = FileSystems.getDefault().getPath(args[0]);
+        Superoptimizer optimizer = new Superoptimizer(ForkJoinPool.commonPool());
+        Set<String> searched = new HashSet<>();
+        try {
+            RuleDatabase rules = Files.exists(rulePath) ? RuleDatabase.load(rulePath) : new RuleDatabase();
+            for (int i = 1; i < args.length; i++) {
+                List<String> source = Files.readAllLines(FileSystems.getDefault().getPath(args[i]));
+                for (Window window : RuleDatabase.findWindows(JohnnyScript.parse(source), RuleDatabase.MAX_WINDOW)) {
+                    if (rules.contains(window) || !searched.add(window.key())) {
+                        continue;
+                    }
+                    String replacement = optimizer.search(window);
+                    if (replacement != null) {
+                        rules.put(window, replacement);
+                        System.out.println(window.key() + " => " + replacement);
+                    }
+                }
+            }
+            rules.save(rulePath);
+            System.out.println(rules.size() + " rules in " + rulePath);
+        } catch (InvalidRuleException | InvalidScriptException | DuplicateVariableException
+                | VariableNotInitializedException | DuplicateJumpPointException e) {
+            throw new CompilerHaltException(e);
+        }
+    }
+
+    /**
+     * Shared state of the search for candidates of one length
+     */
+    private static class Search {
+
+        final boolean accLive;
+        final int alphabet;
+        final int slotCount;
+        final int length;
+        final int[][] inputs;
+        final int[][] outputs;
+        final int[][] forms;
+        final AtomicLong best = new AtomicLong(Long.MAX_VALUE); // smallest equivalent candidate found so far
+
+        Search(boolean accLive, int alphabet, int slotCount, int length, int[][] inputs, int[][] outputs, int[][] forms) {
+            this.accLive = accLive;
+            this.alphabet = alphabet;
+            this.slotCount = slotCount;
+            this.length = length;
+            this.inputs = inputs;
+            this.outputs = outputs;
+            this.forms = forms;
+        }
+
+        /**
+         * Decodes a candidate number into its instructions, every instruction is one digit in base alphabet
+         */
+        void decode(long candidate, int[] codes, int[] slots) {
+            for (int i = 0; i < length; i++) {
+                int digit = (int) (candidate % alphabet);
+                codes[i] = digit / slotCount;
+                slots[i] = digit % slotCount;
+                candidate /= alphabet;
+            }
+        }
+
+        /**
+         * Runs the candidate on all random states, stopping at the first mismatch
+         */
+        boolean passesTests(int[] codes, int[] slots, int[] state) {
+            for (int test = 0; test < inputs.length; test++) {
+                System.arraycopy(inputs[test], 0, state, 0, state.length);
+                for (int i = 0; i < length; i++) {
+                    execute(codes[i], slots[i], state);
+                }
+                for (int i = accLive ? 0 : 1; i < state.length; i++) {
+                    if (state[i] != outputs[test][i]) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        boolean isEquivalent(int[] codes, int[] slots) {
+            return Superoptimizer.isEquivalent(forms, codes, slots, accLive);
+        }
+    }
+
+    /**
+     * Checks a range of candidate numbers, splitting it in halves until it's small enough to be checked sequentially
+     */
+    private static class CandidateRange extends RecursiveAction {
+
+        private final Search search;
+        private final long from;
+        private final long to;
+
+        CandidateRange(Search search, long from, long to) {
+            this.search = search;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (from >= search.best.get()) {
+                return; // a smaller equivalent candidate has already been found
+            }
+            if (to - from > SPLIT_THRESHOLD) {
+                long middle = from + (to - from) / 2;
+                invokeAll(new CandidateRange(search, from, middle), new CandidateRange(search, middle, to));
+                return;
+            }
+
+            int[] codes = new int[search.length];
+            int[] slots = new int[search.length];
+            int[] state = new int[search.forms.length];
+            for (long candidate = from; candidate < to && candidate < search.best.get(); candidate++) {
+                search.decode(candidate, codes, slots);
+                if (search.passesTests(codes, slots, state) && search.isEquivalent(codes, slots)) {
+                    search.best.accumulateAndGet(candidate, Math::min);
+                    return;
+                }
+            }
+        }
+    }
+}
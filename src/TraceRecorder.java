@@ -0,0 +1,221 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Records the execution of a {@link MicrocodeEngine} run into a trace file that {@link TraceReplay} can step through.
+ *
+ * The records are written into a fixed-size ring buffer outside of the Java heap that is split into chunks. A full chunk
+ * is handed to a writer thread which streams it to the file while the engine fills the next chunk, so the engine only
+ * waits for the disk if the whole ring is full.
+ *
+ * File format: the magic bytes and version, the number of memory cells and the initial value of every cell as varints,
+ * followed by one record per executed instruction until the end of the file. A record starts with a tag byte holding
+ * the opcode and flags for the parts that follow:
+ * <ul>
+ *     <li>JUMP: the address didn't follow the previous one, zigzag varint of the difference to the expected address</li>
+ *     <li>WRITE: varint of the written address and zigzag varint of the difference between the new and the old value</li>
+ *     <li>ACC: zigzag varint of the difference between the new and the old accumulator</li>
+ * </ul>
+ * Storing differences instead of values keeps records small and allows undoing them when stepping backward.
+ */
+class TraceRecorder implements AutoCloseable {
+
+    static final byte[] MAGIC = {'J', 'T', 'R', 'C'};
+    static final int VERSION = 1;
+    static final int CHUNK_SIZE = 1 << 16;
+    static final int DEFAULT_CAPACITY = 64 * CHUNK_SIZE;
+
+    // tag byte of a record
+    static final int OPCODE_MASK = 0x0f;
+    static final int JUMP = 0x10;
+    static final int WRITE = 0x20;
+    static final int ACC = 0x40;
+
+    private static final int MAX_RECORD = 1 + 4 * 5; // tag and up to four varints of at most 5 bytes
+    private static final int END_OF_TRACE = -1; // chunk length telling the writer thread to stop
+
+    private final FileChannel channel;
+    private final ByteBuffer[] chunks; // slices of one direct buffer
+    private final int[] lengths; // used bytes per handed over chunk
+    private final Semaphore free;
+    private final Semaphore filled = new Semaphore(0);
+    private final Thread writer;
+    private volatile IOException failure;
+
+    private int current; // chunk being filled by the engine
+    private int previousAddress = -1;
+    private long records;
+
+    /**
+     * Constructor allocates the ring buffer and starts the writer thread
+     *
+     * @param channel channel the trace is streamed to
+     * @param capacity size of the ring buffer in bytes, at least two chunks
+     */
+    TraceRecorder(FileChannel channel, int capacity) {
+        if (capacity < 2 * CHUNK_SIZE) {
+            throw new IllegalArgumentException("Trace buffer needs at least " + 2 * CHUNK_SIZE + " bytes: " + capacity);
+        }
+        this.channel = channel;
+
+        ByteBuffer ring = ByteBuffer.allocateDirect(capacity / CHUNK_SIZE * CHUNK_SIZE);
+        chunks = new ByteBuffer[capacity / CHUNK_SIZE];
+        lengths = new int[chunks.length];
+        for (int i = 0; i < chunks.length; i++) {
+            ring.limit((i + 1) * CHUNK_SIZE).position(i * CHUNK_SIZE);
+            chunks[i] = ring.slice();
+        }
+        free = new Semaphore(chunks.length - 1); // the first chunk is being filled
+
+        writer = new Thread(this::writeChunks, "trace writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Creates a recorder that writes to a new file
+     *
+     * @param path path of the trace file, an existing file is replaced
+     * @return recorder with a ring buffer of DEFAULT_CAPACITY
+     * @throws IOException if the file can't be created
+     */
+    static TraceRecorder open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        return new TraceRecorder(channel, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Writes the file header, must be called before the first record
+     *
+     * @param memory initial memory of the engine
+     */
+    void begin(int[] memory) {
+        ByteBuffer chunk = chunks[current];
+        chunk.put(MAGIC).put((byte) VERSION);
+        putUnsigned(chunk, memory.length);
+        for (int value : memory) {
+            if (chunk.remaining() < MAX_RECORD) {
+                handOver();
+                chunk = chunks[current];
+            }
+            putUnsigned(chunk, value);
+        }
+    }
+
+    /**
+     * Records one executed instruction
+     *
+     * @param address address the instruction was fetched from
+     * @param opcode opcode of the instruction
+     * @param writeAddress address the instruction wrote to, -1 if it didn't write
+     * @param oldValue value at writeAddress before the instruction
+     * @param newValue value at writeAddress after the instruction
+     * @param oldAcc accumulator before the instruction
+     * @param newAcc accumulator after the instruction
+     */
+    void record(int address, int opcode, int writeAddress, int oldValue, int newValue, int oldAcc, int newAcc) {
+        ByteBuffer chunk = chunks[current];
+        if (chunk.remaining() < MAX_RECORD) {
+            handOver();
+            chunk = chunks[current];
+        }
+
+        int expected = previousAddress + 1;
+        int tag = opcode | (address != expected ? JUMP : 0) | (writeAddress >= 0 ? WRITE : 0) | (newAcc != oldAcc ? ACC : 0);
+        chunk.put((byte) tag);
+        if (address != expected) {
+            putSigned(chunk, address - expected);
+        }
+        if (writeAddress >= 0) {
+            putUnsigned(chunk, writeAddress);
+            putSigned(chunk, newValue - oldValue);
+        }
+        if (newAcc != oldAcc) {
+            putSigned(chunk, newAcc - oldAcc);
+        }
+        previousAddress = address;
+        records++;
+    }
+
+    /**
+     * @return number of instructions recorded so far
+     */
+    long getRecords() {
+        return records;
+    }
+
+    /**
+     * Hands the rest of the trace to the writer thread, waits until everything is written and closes the file
+     *
+     * @throws IOException if writing the trace failed
+     */
+    @Override
+    public void close() throws IOException {
+        handOver();
+        lengths[current] = END_OF_TRACE;
+        filled.release();
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing the trace", e);
+        } finally {
+            channel.close();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Passes the current chunk to the writer thread and continues in the next one, waiting if the ring is full
+     */
+    private void handOver() {
+        lengths[current] = chunks[current].position();
+        filled.release();
+        free.acquireUninterruptibly();
+        current = (current + 1) % chunks.length;
+        chunks[current].clear();
+    }
+
+    /**
+     * Writer thread: streams the handed over chunks to the file in order
+     */
+    private void writeChunks() {
+        int next = 0;
+        while (true) {
+            filled.acquireUninterruptibly();
+            if (lengths[next] == END_OF_TRACE) {
+                return;
+            }
+            ByteBuffer chunk = chunks[next].duplicate();
+            chunk.position(0).limit(lengths[next]);
+            try {
+                while (chunk.hasRemaining() && failure == null) {
+                    channel.write(chunk);
+                }
+            } catch (IOException e) {
+                failure = e; // the rest of the trace is dropped, but the engine must not wait for the writer forever
+            }
+            next = (next + 1) % chunks.length;
+            free.release();
+        }
+    }
+
+    static void putUnsigned(ByteBuffer buffer, int value) {
+        while ((value & ~0x7f) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static void putSigned(ByteBuffer buffer, int value) {
+        putUnsigned(buffer, (value << 1) ^ (value >> 31));
+    }
+}
@@ -0,0 +1,356 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Steps forward and backward through a trace written by {@link TraceRecorder}. The memory and the accumulator are
+ * rebuilt from the initial memory in the trace by applying the recorded differences, and stepping backward undoes them.
+ *
+ * Records have different lengths, so the replay remembers the position of every CHECKPOINT_INTERVAL-th record. Stepping
+ * backward into a block of records decodes the block once from its checkpoint and keeps the position of every record in
+ * it, so going back any number of steps takes time linear in the number of steps.
+ */
+public class TraceReplay {
+
+    static final int CHECKPOINT_INTERVAL = 1024;
+
+    private final ByteBuffer trace;
+    private final int[] memory;
+    private final int start; // offset of the first record
+    private int records;
+    private int[] checkpointOffsets = new int[16];
+    private int[] checkpointAddresses = new int[16]; // address of the record before each checkpoint
+
+    // positions of the records of one block, filled when stepping backward into it
+    private final int[] blockOffsets = new int[CHECKPOINT_INTERVAL];
+    private final int[] blockAddresses = new int[CHECKPOINT_INTERVAL]; // address of the record before each record
+    private int block = -1;
+
+    private int step; // number of records applied
+    private int offset; // offset of the next record
+    private int lastAddress = -1; // address of the last applied record
+    private int acc;
+
+    // fields of the record decoded last
+    private int tag;
+    private int address;
+    private int writeAddress;
+    private int writeDelta;
+    private int accDelta;
+    private int next; // offset after the record
+
+    /**
+     * Constructor reads the header and indexes the records
+     *
+     * @param trace content of a trace file
+     * @throws InvalidTraceException if the content isn't a trace of a supported version
+     */
+    TraceReplay(ByteBuffer trace) throws InvalidTraceException {
+        this.trace = trace;
+        try {
+            byte[] magic = new byte[TraceRecorder.MAGIC.length];
+            trace.duplicate().get(magic);
+            int version = trace.get(magic.length);
+            if (!Arrays.equals(magic, TraceRecorder.MAGIC) || version != TraceRecorder.VERSION) {
+                throw new InvalidTraceException("Not a trace file of version " + TraceRecorder.VERSION);
+            }
+            offset = magic.length + 1;
+            memory = new int[getUnsigned()];
+            for (int i = 0; i < memory.length; i++) {
+                memory[i] = getUnsigned();
+            }
+            start = offset;
+            index();
+        } catch (IndexOutOfBoundsException e) {
+            throw new InvalidTraceException("Trace is truncated");
+        }
+        offset = start;
+    }
+
+    /**
+     * Opens a trace file
+     *
+     * @param path path of the trace file
+     * @return replay positioned before the first instruction
+     * @throws IOException if the file can't be read
+     * @throws InvalidTraceException if the file isn't a trace of a supported version
+     */
+    static TraceReplay open(Path path) throws IOException, InvalidTraceException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new InvalidTraceException("Trace is larger than 2 GB: " + path);
+            }
+            return new TraceReplay(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * @return number of executed instructions in the trace
+     */
+    int size() {
+        return records;
+    }
+
+    /**
+     * @return number of instructions executed so far
+     */
+    int getStep() {
+        return step;
+    }
+
+    /**
+     * @return address of the instruction executed by the next step, -1 at the end of the trace
+     */
+    int getAddress() {
+        if (step == records) {
+            return -1;
+        }
+        decode(offset, lastAddress);
+        return address;
+    }
+
+    /**
+     * @return opcode of the instruction executed by the next step, 0 at the end of the trace
+     */
+    int getOpcode() {
+        if (step == records) {
+            return 0;
+        }
+        decode(offset, lastAddress);
+        return tag & TraceRecorder.OPCODE_MASK;
+    }
+
+    /**
+     * @return accumulator after the instructions executed so far
+     */
+    int getAccumulator() {
+        return acc;
+    }
+
+    /**
+     * @param address memory address
+     * @return value of the memory cell after the instructions executed so far
+     */
+    int readMemory(int address) {
+        return memory[address];
+    }
+
+    /**
+     * Executes the next instructions
+     *
+     * @param count number of instructions, stops at the end of the trace
+     */
+    void forward(int count) {
+        for (int i = 0; i < count && step < records; i++) {
+            decode(offset, lastAddress);
+            if ((tag & TraceRecorder.WRITE) != 0) {
+                memory[writeAddress] += writeDelta;
+            }
+            acc += accDelta;
+            lastAddress = address;
+            offset = next;
+            step++;
+        }
+    }
+
+    /**
+     * Undoes the last instructions
+     *
+     * @param count number of instructions, stops at the beginning of the trace
+     */
+    void backward(int count) {
+        for (int i = 0; i < count && step > 0; i++) {
+            int record = step - 1;
+            if (record / CHECKPOINT_INTERVAL != block) {
+                indexBlock(record / CHECKPOINT_INTERVAL);
+            }
+            int recordOffset = blockOffsets[record % CHECKPOINT_INTERVAL];
+            int previousAddress = blockAddresses[record % CHECKPOINT_INTERVAL];
+            decode(recordOffset, previousAddress);
+            if ((tag & TraceRecorder.WRITE) != 0) {
+                memory[writeAddress] -= writeDelta;
+            }
+            acc -= accDelta;
+            lastAddress = previousAddress;
+            offset = recordOffset;
+            step--;
+        }
+    }
+
+    /**
+     * Decodes a block of records from its checkpoint and keeps the position of every record
+     *
+     * @param checkpoint number of the block
+     */
+    private void indexBlock(int checkpoint) {
+        int recordOffset = checkpointOffsets[checkpoint];
+        int previousAddress = checkpointAddresses[checkpoint];
+        int end = Math.min(records - checkpoint * CHECKPOINT_INTERVAL, CHECKPOINT_INTERVAL);
+        for (int i = 0; i < end; i++) {
+            blockOffsets[i] = recordOffset;
+            blockAddresses[i] = previousAddress;
+            decode(recordOffset, previousAddress);
+            previousAddress = address;
+            recordOffset = next;
+        }
+        block = checkpoint;
+    }
+
+    /**
+     * Moves to the state after the given number of instructions
+     *
+     * @param target number of executed instructions, limited to the trace
+     */
+    void goTo(int target) {
+        if (target > step) {
+            forward(target - step);
+        } else {
+            backward(step - target);
+        }
+    }
+
+    /**
+     * Counts the records and remembers the position of every CHECKPOINT_INTERVAL-th one
+     *
+     * @throws InvalidTraceException if a record writes outside of the memory
+     */
+    private void index() throws InvalidTraceException {
+        int previousAddress = -1;
+        while (offset < trace.limit()) {
+            if (records % CHECKPOINT_INTERVAL == 0) {
+                int checkpoint = records / CHECKPOINT_INTERVAL;
+                if (checkpoint == checkpointOffsets.length) {
+                    checkpointOffsets = Arrays.copyOf(checkpointOffsets, 2 * checkpoint);
+                    checkpointAddresses = Arrays.copyOf(checkpointAddresses, 2 * checkpoint);
+                }
+                checkpointOffsets[checkpoint] = offset;
+                checkpointAddresses[checkpoint] = previousAddress;
+            }
+            decode(offset, previousAddress);
+            if (writeAddress >= memory.length || address < 0 || address >= memory.length) {
+                throw new InvalidTraceException("Record " + records + " is outside of the memory");
+            }
+            previousAddress = address;
+            offset = next;
+            records++;
+        }
+    }
+
+    /**
+     * Decodes the record at the given offset into the record fields
+     *
+     * @param recordOffset offset of the record
+     * @param previousAddress address of the record before
+     */
+    private void decode(int recordOffset, int previousAddress) {
+        offset = recordOffset;
+        tag = trace.get(offset++);
+        address = previousAddress + 1 + ((tag & TraceRecorder.JUMP) != 0 ? getSigned() : 0);
+        writeAddress = -1;
+        writeDelta = 0;
+        if ((tag & TraceRecorder.WRITE) != 0) {
+            writeAddress = getUnsigned();
+            writeDelta = getSigned();
+        }
+        accDelta = (tag & TraceRecorder.ACC) != 0 ? getSigned() : 0;
+        next = offset;
+        offset = recordOffset;
+    }
+
+    private int getUnsigned() {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = trace.get(offset++);
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private int getSigned() {
+        int value = getUnsigned();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Prints the state of the replay
+     */
+    private String describe() {
+        int opcode = getOpcode();
+        String instruction = opcode == 0 ? "end of trace"
+                : String.format("next %03d: %s %03d", getAddress(),
+                JohnnyScript.Codes.values()[opcode - 1], memory[getAddress()] % MicrocodeEngine.MEMORY_SIZE);
+        return String.format("step %d/%d  acc %d  %s", step, records, acc, instruction);
+    }
+
+    /**
+     * Replays a trace file interactively. Commands read from standard input: n [count] steps forward, b [count] steps
+     * backward, g step goes to a step, m address [count] prints memory cells and q quits.
+     *
+     * @param args path of the .trace file
+     * @throws IOException if the file can't be read
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Missing argument.\nUsage: java TraceReplay file.trace");
+            throw new IllegalArgumentException();
+        }
+
+        TraceReplay replay;
+        try {
+            replay = open(FileSystems.getDefault().getPath(args[0]));
+        } catch (InvalidTraceException e) {
+            throw new SimulationHaltException(args[0], e);
+        }
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        System.out.println(replay.describe());
+        String line;
+        while ((line = in.readLine()) != null) {
+            String[] command = line.trim().split("\\s+");
+            try {
+                int first = command.length > 1 ? Integer.parseInt(command[1]) : 1;
+                switch (command[0]) {
+                    case "n":
+                        replay.forward(first);
+                        break;
+                    case "b":
+                        replay.backward(first);
+                        break;
+                    case "g":
+                        replay.goTo(first);
+                        break;
+                    case "m":
+                        int count = command.length > 2 ? Integer.parseInt(command[2]) : 1;
+                        for (int a = first; a < first + count && a < replay.memory.length; a++) {
+                            System.out.println(String.format("%03d: %05d", a, replay.readMemory(a)));
+                        }
+                        continue;
+                    case "q":
+                        return;
+                    default:
+                        System.out.println("Commands: n [count], b [count], g step, m address [count], q");
+                        continue;
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                System.out.println("Invalid command: " + line);
+                continue;
+            }
+            System.out.println(replay.describe());
+        }
+    }
+}
+
+class InvalidTraceException extends Exception {
+
+    InvalidTraceException(String message) {
+        super(message);
+    }
+}
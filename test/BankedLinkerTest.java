@@ -0,0 +1,98 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for BankedLinker
+ */
+public class BankedLinkerTest {
+
+    @Test
+    public void testSingleBankIsClassic() throws Exception {
+        List<String> source = new ArrayList<>();
+        source.add("#i 3");
+        source.add(":loop");
+        source.add("dec #i");
+        source.add("tst #i");
+        source.add("jmp loop");
+        source.add("hlt");
+        RamCode code = JohnnyScript.parse(source);
+
+        BankedLinker linker = new BankedLinker(code);
+
+        assertEquals(code.getCode(), linker.link());
+        assertEquals(1, linker.getBankCount());
+    }
+
+    @Test
+    public void testVariablesInSeveralBanks() throws Exception {
+        List<String> source = new ArrayList<>();
+        for (int i = 0; i < 1500; i++) {
+            source.add("#v" + i + " " + i % 3);
+        }
+        source.add("#sum 0");
+        for (int i = 0; i < 1500; i++) {
+            source.add("add #v" + i);
+        }
+        source.add("save #sum");
+        source.add("hlt");
+        RamCode code = JohnnyScript.parse(source);
+
+        BankedLinker linker = new BankedLinker(code);
+        List<String> ram = linker.link();
+        MicrocodeEngine engine = new MicrocodeEngine(ram);
+        engine.run(MicrocodeEngine.DEFAULT_CYCLE_LIMIT);
+
+        assertEquals(1500, engine.readMemory(linker.getVariableAddress("sum")));
+        assertEquals(0, ram.size() % BankedLinker.BANK_SIZE);
+        assertEquals(ram.size() / BankedLinker.BANK_SIZE, linker.getBankCount());
+        assertEquals(4, linker.getBankCount());
+        assertTrue(ram.contains(JohnnyScript.Codes.DBANK.codeOrdinal + "001"));
+    }
+
+    @Test
+    public void testLoopAcrossBanks() throws Exception {
+        List<String> source = new ArrayList<>();
+        source.add("#count 3");
+        source.add("#x 0");
+        source.add(":loop");
+        for (int i = 0; i < 1200; i++) {
+            source.add("inc #x");
+        }
+        source.add("dec #count");
+        source.add("tst #count");
+        source.add("jmp loop"); // skipped by TST and too far away for a single jump, so it needs a trampoline
+        source.add("hlt");
+        RamCode code = JohnnyScript.parse(source);
+
+        BankedLinker linker = new BankedLinker(code);
+        MicrocodeEngine engine = new MicrocodeEngine(linker.link());
+        CycleReport report = engine.run(MicrocodeEngine.DEFAULT_CYCLE_LIMIT);
+
+        assertEquals(3600, engine.readMemory(linker.getVariableAddress("x")));
+        assertEquals(0, engine.readMemory(linker.getVariableAddress("count")));
+        assertEquals(2, linker.getBankCount());
+        assertEquals(0, report.getExecutions(JohnnyScript.Codes.DBANK));
+        assertEquals(5, report.getExecutions(JohnnyScript.Codes.CBANK)); // three times into bank 1, twice back to the loop
+    }
+
+    @Test(expected = ProgramTooLargeException.class)
+    public void testTooManyBanks() throws Exception {
+        List<String> source = new ArrayList<>();
+        source.add("#a 0");
+        for (int i = 0; i <= MicrocodeEngine.MAX_BANKS * BankedLinker.BANK_SIZE; i++) {
+            source.add("inc #a");
+        }
+        new BankedLinker(JohnnyScript.parse(source)).link();
+    }
+
+    @Test(expected = InvalidJumpsException.class)
+    public void testUndefinedJumpPoint() throws Exception {
+        RamCode code = new RamCode();
+        code.addJump("nowhere");
+        new BankedLinker(code).link();
+    }
+}
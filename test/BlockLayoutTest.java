@@ -0,0 +1,113 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for BlockLayout
+ */
+public class BlockLayoutTest {
+
+    private static final List<String> WHILE_LOOP = Arrays.asList(
+            "#i 5",
+            "#sum 0",
+            ":loop",
+            "tst #i",
+            "jmp body",
+            "jmp done",
+            ":body",
+            "take #sum",
+            "add #i",
+            "save #sum",
+            "dec #i",
+            "jmp loop",
+            ":done",
+            "hlt");
+
+    @Test
+    public void testLoopTestMovesToEnd() throws Exception {
+        RamCode code = JohnnyScript.parse(WHILE_LOOP);
+        MicrocodeEngine before = new MicrocodeEngine(code.getCode());
+        CycleReport beforeReport = before.run(MicrocodeEngine.DEFAULT_CYCLE_LIMIT);
+
+        RamCode optimized = BlockLayout.optimize(code);
+        MicrocodeEngine after = new MicrocodeEngine(optimized.getCode());
+        CycleReport afterReport = after.run(MicrocodeEngine.DEFAULT_CYCLE_LIMIT);
+
+        assertEquals(15, after.readMemory(2));
+        assertEquals(39, beforeReport.getInstructions());
+        assertEquals(34, afterReport.getInstructions());
+    }
+
+    @Test
+    public void testStaticEstimate() throws Exception {
+        RamCode code = JohnnyScript.parse(WHILE_LOOP);
+        RamCode optimized = new BlockLayout(code, BlockLayout.estimate(code)).layout();
+
+        MicrocodeEngine engine = new MicrocodeEngine(optimized.getCode());
+        CycleReport report = engine.run(MicrocodeEngine.DEFAULT_CYCLE_LIMIT);
+
+        assertEquals(15, engine.readMemory(2));
+        assertTrue(report.getInstructions() < 39);
+    }
+
+    @Test
+    public void testGeneratedPrograms() throws Exception {
+        for (long seed = 0; seed < 40; seed++) {
+            List<String> source = new ProgramGenerator(seed, 300, 10, 0.4, 1 + (int) (seed % 4)).generate();
+            RamCode code = JohnnyScript.parse(source);
+            MicrocodeEngine before = new MicrocodeEngine(code.getCode());
+            CycleReport beforeReport = before.run(MicrocodeEngine.DEFAULT_CYCLE_LIMIT);
+
+            RamCode optimized = BlockLayout.optimize(code);
+            MicrocodeEngine after = new MicrocodeEngine(optimized.getCode());
+            CycleReport afterReport = after.run(MicrocodeEngine.DEFAULT_CYCLE_LIMIT);
+
+            assertTrue("Seed " + seed, afterReport.getInstructions() <= beforeReport.getInstructions());
+            for (int address = 1; address <= code.getVariableCount(); address++) {
+                assertEquals("Seed " + seed + ", address " + address, before.readMemory(address), after.readMemory(address));
+            }
+        }
+    }
+
+    @Test
+    public void testSelfAddressingCodeUnchanged() throws Exception {
+        List<String> source = new ArrayList<>(WHILE_LOOP);
+        source.add(3, "take 3"); // reads the code itself
+        RamCode code = JohnnyScript.parse(source);
+
+        assertFalse(BlockLayout.canReorder(code));
+        assertSame(code, BlockLayout.optimize(code));
+    }
+
+    @Test
+    public void testScratchBehindCodeUnchanged() throws Exception {
+        List<String> source = new ArrayList<>(WHILE_LOOP);
+        source.add(source.size() - 1, "take 14"); // behind the code, which would grow into it
+        source.add(source.size() - 1, "save #sum");
+        RamCode code = JohnnyScript.parse(source);
+
+        assertFalse(BlockLayout.canReorder(code));
+        assertSame(code, BlockLayout.optimize(code));
+        MicrocodeEngine engine = new MicrocodeEngine(code.getCode());
+        engine.run(MicrocodeEngine.DEFAULT_CYCLE_LIMIT);
+        assertEquals(0, engine.readMemory(2));
+    }
+
+    @Test
+    public void testTstAtEndUnchanged() throws Exception {
+        RamCode code = JohnnyScript.parse(Arrays.asList("#i 1", "tst #i", "hlt"));
+        assertFalse(BlockLayout.canReorder(code));
+    }
+
+    @Test
+    public void testEndlessLoop() throws Exception {
+        RamCode code = JohnnyScript.parse(Arrays.asList("#i 1", ":loop", "inc #i", "jmp loop"));
+        RamCode optimized = BlockLayout.optimize(code);
+
+        assertEquals(code.getCode(), optimized.getCode());
+    }
+}
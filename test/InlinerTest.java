@@ -0,0 +1,228 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for Inliner
+ */
+public class InlinerTest {
+
+    // adds a to s twenty times, the loop counter i is declared in the body
+    private static final List<String> ADD_TWENTY = Arrays.asList(
+            "subroutine addtwenty",
+            "#i 0",
+            "null #i",
+            "take #twenty",
+            "save #i",
+            ":loop",
+            "take #s",
+            "add #a",
+            "save #s",
+            "dec #i",
+            "tst #i",
+            "jmp loop",
+            "end");
+
+    private static List<String> program(String... main) {
+        List<String> source = new ArrayList<>();
+        source.add("#a 1");
+        source.add("#s 0");
+        source.add("#twenty 20");
+        source.add("#n 5");
+        source.addAll(ADD_TWENTY);
+        source.addAll(Arrays.asList(main));
+        return source;
+    }
+
+    private static MicrocodeEngine run(RamCode code) throws Exception {
+        MicrocodeEngine engine = new MicrocodeEngine(code.getCode());
+        engine.run(MicrocodeEngine.DEFAULT_CYCLE_LIMIT);
+        return engine;
+    }
+
+    @Test
+    public void testMacroIsCopiedWithLocalJumpPoints() throws Exception {
+        List<String> source = new ArrayList<>();
+        source.add("#x 3");
+        source.add("#y 0");
+        source.add("macro drain");
+        source.add(":again");
+        source.add("inc #y");
+        source.add("dec #x");
+        source.add("tst #x");
+        source.add("jmp again");
+        source.add("end");
+        source.add("call drain");
+        source.add("inc #x");
+        source.add("call drain");
+        source.add("hlt");
+
+        Inliner inliner = new Inliner(source);
+        RamCode code = inliner.compile(RamCode.MAX_LINES + 1);
+        MicrocodeEngine engine = run(code);
+
+        assertEquals(0, engine.readMemory(1));
+        assertEquals(4, engine.readMemory(2));
+        assertEquals(10, code.getCodeLines().size());
+        assertFalse(code.hasCodeReferences());
+        assertEquals("", inliner.getReport()); // macros are always copied, there is nothing to decide
+    }
+
+    @Test
+    public void testSubroutineCalledWhenMemoryIsShort() throws Exception {
+        // four calls, so that copying any of them makes the program larger
+        List<String> source = program("call addtwenty", "call addtwenty", "call addtwenty", "call addtwenty", "hlt");
+
+        Inliner inliner = new Inliner(source);
+        RamCode calls = inliner.compile(0);
+        int callSize = 1 + calls.getVariableCount() + calls.getCodeLines().size();
+        inliner = new Inliner(source);
+        RamCode code = inliner.compile(callSize);
+        MicrocodeEngine engine = run(code);
+
+        assertEquals(80, engine.readMemory(2));
+        assertTrue(code.hasCodeReferences());
+        assertTrue(inliner.getReport().contains("line 18 call addtwenty: called, 1 executions"));
+        assertTrue(inliner.getReport().contains("line 21 call addtwenty: called, 1 executions"));
+    }
+
+    @Test
+    public void testSubroutineInlinedWhenMemoryIsLeft() throws Exception {
+        List<String> source = program("call addtwenty", "call addtwenty", "hlt");
+
+        RamCode code = new Inliner(source).compile(RamCode.MAX_LINES + 1);
+        MicrocodeEngine engine = run(code);
+
+        assertEquals(40, engine.readMemory(2));
+        assertFalse(code.hasCodeReferences());
+    }
+
+    @Test
+    public void testHotCallSiteInlinedFirst() throws Exception {
+        List<String> source = program(
+                "call addtwenty",
+                ":outer",
+                "call addtwenty",
+                "dec #n",
+                "tst #n",
+                "jmp outer",
+                "call addtwenty",
+                "call addtwenty",
+                "call addtwenty",
+                "hlt");
+
+        Inliner inliner = new Inliner(source);
+        RamCode calls = inliner.compile(0);
+        int callSize = 1 + calls.getVariableCount() + calls.getCodeLines().size();
+        inliner = new Inliner(source);
+        RamCode code = inliner.compile(callSize + 4); // room for one copy of the body instead of a call
+        MicrocodeEngine engine = run(code);
+
+        assertEquals(180, engine.readMemory(2));
+        assertTrue(inliner.getReport().contains("line 18 call addtwenty: called, 1 executions"));
+        assertTrue(inliner.getReport().contains("line 20 call addtwenty: inlined, 5 executions"));
+        assertTrue(inliner.getReport().contains("line 24 call addtwenty: called, 1 executions"));
+        assertTrue(inliner.getReport().contains("line 25 call addtwenty: called, 1 executions"));
+        assertTrue(inliner.getReport().contains("line 26 call addtwenty: called, 1 executions"));
+        assertTrue(inliner.getReport().contains("steps: "));
+    }
+
+    @Test
+    public void testCalledAndInlinedComputeTheSame() throws Exception {
+        List<String> source = new ArrayList<>(Arrays.asList("#x 5", "#r 0", "subroutine addx"));
+        for (int i = 0; i < 6; i++) {
+            source.add("add #x"); // uses the accumulator of the caller
+        }
+        source.add("end");
+        for (int i = 0; i < 20; i++) {
+            source.addAll(Arrays.asList("take #x", "call addx", "save #r"));
+        }
+        source.add("hlt");
+
+        RamCode calls = new Inliner(source).compile(0);
+        RamCode copies = new Inliner(source).compile(RamCode.MAX_LINES + 1);
+        assertEquals(35, run(calls).readMemory(2));
+        assertEquals(35, run(copies).readMemory(2));
+
+        int callSize = 1 + calls.getVariableCount() + calls.getCodeLines().size();
+        int copySize = 1 + copies.getVariableCount() + copies.getCodeLines().size();
+        Inliner inliner = new Inliner(source);
+        MicrocodeEngine engine = run(inliner.compile((callSize + copySize) / 2));
+        assertEquals(35, engine.readMemory(2));
+        assertTrue(inliner.getReport().contains("inlined"));
+        assertTrue(inliner.getReport().contains("called"));
+    }
+
+    @Test
+    public void testShrinkingCopiesTakenOverLimit() throws Exception {
+        List<String> source = new ArrayList<>();
+        source.add("#v 0");
+        for (int s = 0; s < 6; s++) {
+            source.addAll(Arrays.asList("subroutine bump" + s, "inc #v", "end"));
+        }
+        for (int call = 0; call < 40; call++) {
+            for (int s = 0; s < 6; s++) {
+                source.add("call bump" + s);
+            }
+        }
+        source.add("hlt");
+
+        // with all calls the program needs more than 1000 lines, so no single copy gets it within the limit
+        Inliner inliner = new Inliner(source);
+        RamCode code = inliner.compile(RamCode.MAX_LINES + 1);
+
+        assertEquals(1 + 1 + 240 + 1, 1 + code.getVariableCount() + code.getCodeLines().size());
+        assertFalse(code.hasCodeReferences());
+        assertEquals(240, run(code).readMemory(1));
+        assertFalse(inliner.getReport().contains("called"));
+    }
+
+    @Test
+    public void testBodyVariableUsedBeforeDefinition() throws Exception {
+        List<String> source = Arrays.asList("call bump", "hlt", "subroutine bump", "#v 3", "inc #v", "end");
+
+        assertEquals(4, run(new Inliner(source).compile(0)).readMemory(1));
+        assertEquals(4, run(new Inliner(source).compile(RamCode.MAX_LINES + 1)).readMemory(1));
+        assertEquals(4, run(new Inliner(source).inlineAll()).readMemory(1));
+    }
+
+    @Test
+    public void testNestedCalls() throws Exception {
+        List<String> source = program(
+                "subroutine twice",
+                "call addtwenty",
+                "call addtwenty",
+                "end",
+                "macro fourtimes",
+                "call twice",
+                "call twice",
+                "end",
+                "call fourtimes",
+                "hlt");
+
+        for (int limit : new int[]{0, RamCode.MAX_LINES + 1}) {
+            MicrocodeEngine engine = run(new Inliner(source).compile(limit));
+            assertEquals(80, engine.readMemory(2));
+        }
+        assertEquals(80, run(new Inliner(source).inlineAll()).readMemory(2));
+    }
+
+    @Test(expected = InvalidScriptException.class)
+    public void testRecursion() throws Exception {
+        new Inliner(Arrays.asList("subroutine a", "call b", "end", "subroutine b", "call a", "end", "call a"));
+    }
+
+    @Test(expected = InvalidScriptException.class)
+    public void testUndefinedCall() throws Exception {
+        new Inliner(Arrays.asList("call nothing", "hlt"));
+    }
+
+    @Test(expected = InvalidScriptException.class)
+    public void testMissingEnd() throws Exception {
+        new Inliner(Arrays.asList("macro open", "hlt"));
+    }
+}
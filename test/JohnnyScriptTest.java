@@ -29,6 +29,7 @@ public class JohnnyScriptTest {
     private final String validOutputExtension = ".ram";
     private final String outputFile = validFilename + validOutputExtension;
     private final Path outputPath = FileSystems.getDefault().getPath(outputFile);
+    private final Path bankedOutputPath = FileSystems.getDefault().getPath(validFilename + ".xram");
 
     @Before
     public void setUp() throws Exception {
@@ -41,6 +42,7 @@ public class JohnnyScriptTest {
     public void tearDown() throws Exception {
         Files.deleteIfExists(inputPath);
         Files.deleteIfExists(outputPath);
+        Files.deleteIfExists(bankedOutputPath);
     }
 
     @Test(expected = IllegalArgumentException.class)
@@ -125,6 +127,116 @@ public class JohnnyScriptTest {
         assertEquals(1000, outLines.size());
     }
 
+    @Test
+    public void rulesOption() throws Exception {
+        Path rulePath = FileSystems.getDefault().getPath(validFilename + ".rules");
+        List<String> rules = new ArrayList<>();
+        rules.add("dead: TAKE 0, SAVE 0 =>");
+        Files.write(rulePath, rules);
+
+        List<String> testCode = new ArrayList<>();
+        testCode.add("#a 1");
+        testCode.add("take #a");
+        testCode.add("save #a");
+        testCode.add("inc #a");
+        Files.write(inputPath, testCode);
+
+        try {
+            JohnnyScript.main(new String[]{validFile, "-rules", rulePath.toString()});
+        } finally {
+            Files.deleteIfExists(rulePath);
+        }
+
+        List<String> outLines = Files.readAllLines(outputPath);
+        assertEquals("5002", outLines.get(0));
+        assertEquals("001", outLines.get(1));
+        assertEquals("7001", outLines.get(2));
+        assertEquals("000", outLines.get(3));
+    }
+
+    @Test
+    public void layoutOption() throws Exception {
+        List<String> testCode = new ArrayList<>();
+        testCode.add("#i 2");
+        testCode.add("jmp start");
+        testCode.add(":end");
+        testCode.add("hlt");
+        testCode.add(":start");
+        testCode.add("dec #i");
+        testCode.add("jmp end");
+        Files.write(inputPath, testCode);
+
+        JohnnyScript.main(new String[]{validFile, "-layout"});
+
+        List<String> outLines = Files.readAllLines(outputPath);
+        assertEquals("5002", outLines.get(0));
+        assertEquals("002", outLines.get(1));
+        assertEquals("8001", outLines.get(2));
+        assertEquals("10000", outLines.get(3));
+        assertEquals("000", outLines.get(4));
+    }
+
+    @Test
+    public void bankedOption() throws Exception {
+        List<String> testCode = new ArrayList<>();
+        testCode.add("#a 7");
+        testCode.add("inc #a");
+        testCode.add("hlt");
+        Files.write(inputPath, testCode);
+
+        JohnnyScript.main(new String[]{validFile, "-banked"});
+
+        assertFalse(Files.exists(bankedOutputPath)); // fits into one bank, so it's the classic ram file
+        List<String> outLines = Files.readAllLines(outputPath);
+        assertEquals(1000, outLines.size());
+        assertEquals("5002", outLines.get(0));
+        assertEquals("007", outLines.get(1));
+        assertEquals("7001", outLines.get(2));
+    }
+
+    @Test
+    public void bankedOptionMultipleBanks() throws Exception {
+        List<String> testCode = new ArrayList<>();
+        testCode.add("#a 7");
+        for (int i = 0; i < 1200; i++) {
+            testCode.add("inc #a");
+        }
+        testCode.add("hlt");
+        Files.write(inputPath, testCode);
+
+        JohnnyScript.main(new String[]{validFile, "-banked"});
+
+        assertFalse(Files.exists(outputPath));
+        List<String> outLines = Files.readAllLines(bankedOutputPath);
+        assertEquals(2000, outLines.size());
+        MicrocodeEngine engine = new MicrocodeEngine(outLines);
+        engine.run(MicrocodeEngine.DEFAULT_CYCLE_LIMIT);
+        assertEquals(1207, engine.readMemory(1));
+    }
+
+    @Test
+    public void inliningReport() throws Exception {
+        List<String> testCode = new ArrayList<>();
+        testCode.add("#a 7");
+        testCode.add("subroutine bump");
+        testCode.add("inc #a");
+        testCode.add("end");
+        testCode.add("call bump");
+        testCode.add("hlt");
+
+        StringBuilder report = new StringBuilder();
+        JohnnyScript.compileCode(testCode, new RuleDatabase(), false, false, report);
+
+        assertTrue(report.toString().contains("line 5 call bump: inlined, 1 executions"));
+    }
+
+    @Test(expected = InvalidScriptException.class)
+    public void bankSwitchInSource() throws Exception {
+        List<String> testCode = new ArrayList<>();
+        testCode.add("dbank 1");
+        JohnnyScript.parse(testCode);
+    }
+
     @Test
     public void testTake() throws Exception {
         exhTest("TAKE");
@@ -0,0 +1,149 @@
+import org.junit.Test;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for MicrocodeEngine and CycleReport
+ */
+public class MicrocodeEngineTest {
+
+    @Test
+    public void testInstructionCycles() throws Exception {
+        assertEquals(9, MicrocodeEngine.CYCLES[JohnnyScript.Codes.TAKE.codeOrdinal]);
+        assertEquals(9, MicrocodeEngine.CYCLES[JohnnyScript.Codes.ADD.codeOrdinal]);
+        assertEquals(9, MicrocodeEngine.CYCLES[JohnnyScript.Codes.SUB.codeOrdinal]);
+        assertEquals(9, MicrocodeEngine.CYCLES[JohnnyScript.Codes.SAVE.codeOrdinal]);
+        assertEquals(6, MicrocodeEngine.CYCLES[JohnnyScript.Codes.JMP.codeOrdinal]);
+        assertEquals(10, MicrocodeEngine.CYCLES[JohnnyScript.Codes.TST.codeOrdinal]);
+        assertEquals(12, MicrocodeEngine.CYCLES[JohnnyScript.Codes.INC.codeOrdinal]);
+        assertEquals(12, MicrocodeEngine.CYCLES[JohnnyScript.Codes.DEC.codeOrdinal]);
+        assertEquals(10, MicrocodeEngine.CYCLES[JohnnyScript.Codes.NULL.codeOrdinal]);
+        assertEquals(5, MicrocodeEngine.CYCLES[JohnnyScript.Codes.HLT.codeOrdinal]);
+        assertEquals(7, MicrocodeEngine.CYCLES[JohnnyScript.Codes.DBANK.codeOrdinal]);
+        assertEquals(7, MicrocodeEngine.CYCLES[JohnnyScript.Codes.CBANK.codeOrdinal]);
+        assertEquals(0, MicrocodeEngine.CYCLES[0]);
+    }
+
+    @Test
+    public void testHalt() throws Exception {
+        RamCode code = new RamCode();
+        code.addCode(JohnnyScript.Codes.HLT.codeOrdinal + "000");
+
+        CycleReport report = new MicrocodeEngine(code.getCode()).run(MicrocodeEngine.DEFAULT_CYCLE_LIMIT);
+
+        assertEquals(2, report.getInstructions());
+        assertEquals(11, report.getCycles());
+        assertEquals(6, report.getCycles(0));
+        assertEquals(5, report.getCycles(1));
+    }
+
+    @Test
+    public void testArithmetic() throws Exception {
+        RamCode code = new RamCode();
+        code.addVar("a", 7);
+        code.addVar("b", 3);
+        code.addVar("c", 0);
+        code.addCodeWithVar(String.valueOf(JohnnyScript.Codes.TAKE.codeOrdinal), "a");
+        code.addCodeWithVar(String.valueOf(JohnnyScript.Codes.SUB.codeOrdinal), "b");
+        code.addCodeWithVar(String.valueOf(JohnnyScript.Codes.SAVE.codeOrdinal), "c");
+        code.addCodeWithVar(String.valueOf(JohnnyScript.Codes.INC.codeOrdinal), "a");
+        code.addCodeWithVar(String.valueOf(JohnnyScript.Codes.NULL.codeOrdinal), "b");
+        code.addCode(JohnnyScript.Codes.HLT.codeOrdinal + "000");
+
+        MicrocodeEngine engine = new MicrocodeEngine(code.getCode());
+        engine.run(MicrocodeEngine.DEFAULT_CYCLE_LIMIT);
+
+        assertEquals(8, engine.readMemory(1));
+        assertEquals(0, engine.readMemory(2));
+        assertEquals(4, engine.readMemory(3));
+        assertEquals(0, engine.getAccumulator()); // NULL clears the accumulator
+    }
+
+    @Test
+    public void testValueWrapAround() throws Exception {
+        RamCode code = new RamCode();
+        code.addVar("a", 0);
+        code.addCodeWithVar(String.valueOf(JohnnyScript.Codes.DEC.codeOrdinal), "a");
+        code.addCode(JohnnyScript.Codes.HLT.codeOrdinal + "000");
+
+        MicrocodeEngine engine = new MicrocodeEngine(code.getCode());
+        engine.run(MicrocodeEngine.DEFAULT_CYCLE_LIMIT);
+
+        assertEquals(MicrocodeEngine.MAX_VALUE, engine.readMemory(1));
+    }
+
+    @Test
+    public void testMultiplicationExample() throws Exception {
+        List<String> source = Files.readAllLines(FileSystems.getDefault().getPath("examples", "multiplication.jns"));
+        RamCode code = JohnnyScript.parse(source);
+
+        MicrocodeEngine engine = new MicrocodeEngine(code.getCode());
+        CycleReport report = engine.run(MicrocodeEngine.DEFAULT_CYCLE_LIMIT);
+
+        assertEquals(15, engine.readMemory(1));
+        assertEquals(170, report.getCycles());
+        assertEquals(19, report.getInstructions());
+        assertEquals(3, report.getExecutions(JohnnyScript.Codes.TST));
+        assertEquals(3, report.getExecutions(JohnnyScript.Codes.JMP)); // line zero and two back jumps
+
+        Map<String, Long> regions = report.getCyclesByRegion(code.getJumpPointAddresses());
+        assertEquals(Long.valueOf(6), regions.get(CycleReport.START_REGION));
+        assertEquals(Long.valueOf(164), regions.get("start"));
+    }
+
+    @Test(expected = InvalidInstructionException.class)
+    public void testRunIntoData() throws Exception {
+        List<String> ram = new ArrayList<>();
+        ram.add(JohnnyScript.Codes.JMP.codeOrdinal + "001");
+
+        new MicrocodeEngine(ram).run(MicrocodeEngine.DEFAULT_CYCLE_LIMIT);
+    }
+
+    @Test(expected = CycleLimitExceededException.class)
+    public void testCycleLimit() throws Exception {
+        RamCode code = new RamCode();
+        code.addJumpPoint("loop");
+        code.addJump("loop");
+
+        new MicrocodeEngine(code.getCode()).run(1000);
+    }
+
+    @Test
+    public void testBankSwitches() throws Exception {
+        List<String> ram = new ArrayList<>();
+        for (int i = 0; i < 2 * MicrocodeEngine.MEMORY_SIZE; i++) {
+            ram.add("000");
+        }
+        ram.set(0, JohnnyScript.Codes.CBANK.codeOrdinal + "001");
+        ram.set(1, JohnnyScript.Codes.JMP.codeOrdinal + "005"); // continues at address 5 of bank 1
+        ram.set(1005, JohnnyScript.Codes.DBANK.codeOrdinal + "001");
+        ram.set(1006, JohnnyScript.Codes.TAKE.codeOrdinal + "010");
+        ram.set(1007, JohnnyScript.Codes.DBANK.codeOrdinal + "000");
+        ram.set(1008, JohnnyScript.Codes.SAVE.codeOrdinal + "900");
+        ram.set(1009, JohnnyScript.Codes.HLT.codeOrdinal + "000");
+        ram.set(1010, "42");
+
+        MicrocodeEngine engine = new MicrocodeEngine(ram);
+        CycleReport report = engine.run(MicrocodeEngine.DEFAULT_CYCLE_LIMIT);
+
+        assertEquals(42, engine.readMemory(900));
+        assertEquals(42, engine.readMemory(1010));
+        assertEquals(7, report.getInstructions());
+        assertEquals(2, report.getExecutions(JohnnyScript.Codes.DBANK));
+        assertEquals(1, report.getExecutions(1009));
+    }
+
+    @Test(expected = InvalidInstructionException.class)
+    public void testSwitchToMissingBank() throws Exception {
+        List<String> ram = new ArrayList<>();
+        ram.add(JohnnyScript.Codes.DBANK.codeOrdinal + "001");
+
+        new MicrocodeEngine(ram).run(MicrocodeEngine.DEFAULT_CYCLE_LIMIT);
+    }
+}
@@ -0,0 +1,74 @@
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for ProgramGenerator
+ */
+public class ProgramGeneratorTest {
+
+    @Test
+    public void testSameSeedSameProgram() throws Exception {
+        List<String> first = new ProgramGenerator(7, 300, 20, 0.3, 3).generate();
+        List<String> second = new ProgramGenerator(7, 300, 20, 0.3, 3).generate();
+        assertEquals(first, second);
+        assertNotEquals(first, new ProgramGenerator(8, 300, 20, 0.3, 3).generate());
+    }
+
+    @Test
+    public void testValidProgramsHalt() throws Exception {
+        for (long seed = 0; seed < 50; seed++) {
+            int size = 10 + (int) (seed * 17 % 800);
+            ProgramGenerator generator = new ProgramGenerator(seed, size, 1 + (int) (seed % 40), seed % 10 / 10.0, 1 + (int) (seed % 5));
+            List<String> program = generator.generate();
+
+            RamCode code = JohnnyScript.parse(program);
+            assertEquals("Instructions of seed " + seed, size, code.getCodeLines().size());
+
+            MicrocodeEngine engine = new MicrocodeEngine(code.getCode());
+            CycleReport report = engine.run(MicrocodeEngine.DEFAULT_CYCLE_LIMIT);
+            assertTrue(report.getInstructions() > 0);
+        }
+    }
+
+    @Test
+    public void testLabelFanIn() throws Exception {
+        int fanIn = 4;
+        List<String> program = new ProgramGenerator(3, 900, 10, 0.9, fanIn).generate();
+
+        Map<String, Integer> jumps = new HashMap<>();
+        for (String line : program) {
+            if (line.startsWith("jmp f")) {
+                jumps.merge(line.substring(4), 1, Integer::sum);
+            }
+        }
+
+        assertFalse(jumps.isEmpty());
+        assertTrue(jumps.values().stream().allMatch(count -> count <= fanIn));
+        assertTrue(jumps.values().contains(fanIn));
+    }
+
+    @Test
+    public void testDefects() throws Exception {
+        for (ProgramGenerator.Defect defect : ProgramGenerator.Defect.values()) {
+            for (long seed = 0; seed < 10; seed++) {
+                List<String> program = new ProgramGenerator(seed, 200, 10, 0.3, 2).generate(defect);
+                try {
+                    JohnnyScript.parse(program).getCode();
+                    fail(defect + " not detected for seed " + seed);
+                } catch (Exception e) {
+                    assertEquals(defect + " for seed " + seed, defect.expected, e.getClass());
+                }
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSettings() throws Exception {
+        new ProgramGenerator(0, 100, 10, 1.5, 1);
+    }
+}
@@ -0,0 +1,169 @@
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for RuleDatabase and Window
+ */
+public class RuleDatabaseTest {
+
+    private final Path rulePath = FileSystems.getDefault().getPath("jUnit.rules");
+
+    @After
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(rulePath);
+    }
+
+    @Test
+    public void testFindWindows() throws Exception {
+        RamCode code = new RamCode();
+        code.addVar("a", 1);
+        code.addVar("b", 2);
+        code.addCodeWithVar(String.valueOf(JohnnyScript.Codes.TAKE.codeOrdinal), "a");
+        code.addCodeWithVar(String.valueOf(JohnnyScript.Codes.ADD.codeOrdinal), "b");
+        code.addJumpPoint("loop");
+        code.addCodeWithVar(String.valueOf(JohnnyScript.Codes.SAVE.codeOrdinal), "a");
+        code.addCodeWithVar(String.valueOf(JohnnyScript.Codes.TST.codeOrdinal), "a");
+        code.addCodeWithVar(String.valueOf(JohnnyScript.Codes.INC.codeOrdinal), "b");
+        code.addCodeWithVar(String.valueOf(JohnnyScript.Codes.DEC.codeOrdinal), "b");
+        code.addCodeWithVar(String.valueOf(JohnnyScript.Codes.DEC.codeOrdinal), "a");
+        code.addJump("loop");
+
+        List<String> keys = new ArrayList<>();
+        RuleDatabase.findWindows(code, 5).forEach(window -> keys.add(window.key()));
+
+        // the jump point splits the first run, the TST slot (INC b) can't be part of a window
+        assertEquals(2, keys.size());
+        assertEquals("live: TAKE 0, ADD 1", keys.get(0));
+        assertEquals("live: DEC 0, DEC 1", keys.get(1));
+    }
+
+    @Test
+    public void testApplyMovesJumps() throws Exception {
+        Files.write(rulePath, singletonRule("dead: TAKE 0, SAVE 0 =>"));
+        RuleDatabase rules = RuleDatabase.load(rulePath);
+
+        RamCode code = new RamCode();
+        code.addVar("a", 1);
+        code.addJumpPoint("start");
+        code.addCodeWithVar(String.valueOf(JohnnyScript.Codes.TAKE.codeOrdinal), "a");
+        code.addCodeWithVar(String.valueOf(JohnnyScript.Codes.SAVE.codeOrdinal), "a");
+        code.addCodeWithVar(String.valueOf(JohnnyScript.Codes.INC.codeOrdinal), "a");
+        code.addJump("end");
+        code.addJump("start");
+        code.addJumpPoint("end");
+        code.addCode(JohnnyScript.Codes.HLT.codeOrdinal + "000");
+
+        assertEquals(2, rules.apply(code));
+
+        List<String> codeList = code.getCode();
+        assertEquals(JohnnyScript.Codes.JMP.codeOrdinal + "002", codeList.get(0));
+        assertEquals(JohnnyScript.Codes.INC.codeOrdinal + "001", codeList.get(2));
+        assertEquals(JohnnyScript.Codes.JMP.codeOrdinal + "005", codeList.get(3));
+        assertEquals(JohnnyScript.Codes.JMP.codeOrdinal + "002", codeList.get(4));
+        assertEquals(JohnnyScript.Codes.HLT.codeOrdinal + "000", codeList.get(5));
+    }
+
+    @Test
+    public void testApplyUsesWindowAddresses() throws Exception {
+        Files.write(rulePath, singletonRule("live: TAKE 0, SAVE 1, TAKE 1 => TAKE 0, SAVE 1"));
+        RuleDatabase rules = RuleDatabase.load(rulePath);
+
+        RamCode code = new RamCode();
+        code.addVar("a", 1);
+        code.addVar("b", 2);
+        code.addCodeWithVar(String.valueOf(JohnnyScript.Codes.TAKE.codeOrdinal), "b");
+        code.addCodeWithVar(String.valueOf(JohnnyScript.Codes.SAVE.codeOrdinal), "a");
+        code.addCodeWithVar(String.valueOf(JohnnyScript.Codes.TAKE.codeOrdinal), "a");
+        code.addCode(JohnnyScript.Codes.HLT.codeOrdinal + "000");
+
+        assertEquals(1, rules.apply(code));
+
+        List<String> codeList = code.getCode();
+        assertEquals(JohnnyScript.Codes.TAKE.codeOrdinal + "002", codeList.get(3));
+        assertEquals(JohnnyScript.Codes.SAVE.codeOrdinal + "001", codeList.get(4));
+        assertEquals(JohnnyScript.Codes.HLT.codeOrdinal + "000", codeList.get(5));
+    }
+
+    @Test
+    public void testSelfAddressingCodeUnchanged() throws Exception {
+        Files.write(rulePath, singletonRule("dead: TAKE 0, SAVE 0 =>"));
+        RuleDatabase rules = RuleDatabase.load(rulePath);
+
+        List<String> source = new ArrayList<>();
+        source.add("#a 3");
+        source.add("#b 0");
+        source.add("take #a");
+        source.add("save #a");
+        source.add("take 7"); // reads the HLT, which moves if the window above is removed
+        source.add("save #b");
+        source.add("hlt");
+        RamCode code = JohnnyScript.parse(source);
+
+        assertEquals(0, rules.apply(code));
+        MicrocodeEngine engine = new MicrocodeEngine(code.getCode());
+        engine.run(MicrocodeEngine.DEFAULT_CYCLE_LIMIT);
+        assertEquals(10000, engine.readMemory(2));
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        RuleDatabase rules = new RuleDatabase();
+        Window window = new Window(new int[]{0, 3}, new int[]{0, 0}, false);
+        rules.put(window, "");
+        rules.save(rulePath);
+
+        RuleDatabase loaded = RuleDatabase.load(rulePath);
+        assertEquals(1, loaded.size());
+        assertTrue(loaded.contains(window));
+    }
+
+    @Test(expected = InvalidRuleException.class)
+    public void testInvalidRule() throws Exception {
+        Files.write(rulePath, singletonRule("TAKE 0, SAVE 0 =>"));
+        RuleDatabase.load(rulePath);
+    }
+
+    @Test(expected = InvalidRuleException.class)
+    public void testInvalidInstruction() throws Exception {
+        Files.write(rulePath, singletonRule("live: JMP 0, SAVE 0 => TAKE 0"));
+        RuleDatabase.load(rulePath);
+    }
+
+    @Test(expected = InvalidRuleException.class)
+    public void testReplacementNotShorter() throws Exception {
+        Files.write(rulePath, singletonRule("live: TAKE 0, ADD 1 => TAKE 0, ADD 1"));
+        RuleDatabase.load(rulePath);
+    }
+
+    @Test(expected = InvalidRuleException.class)
+    public void testReplacementNotEquivalent() throws Exception {
+        Files.write(rulePath, singletonRule("live: TAKE 0, ADD 1 => TAKE 1"));
+        RuleDatabase.load(rulePath);
+    }
+
+    @Test(expected = InvalidRuleException.class)
+    public void testReplacementUnknownSlot() throws Exception {
+        Files.write(rulePath, singletonRule("live: TAKE 0, SAVE 0 => TAKE 1"));
+        RuleDatabase.load(rulePath);
+    }
+
+    @Test(expected = InvalidRuleException.class)
+    public void testWindowTooLong() throws Exception {
+        Files.write(rulePath, singletonRule("live: TAKE 0, SAVE 0, SAVE 0, SAVE 0, SAVE 0, SAVE 0 => TAKE 0"));
+        RuleDatabase.load(rulePath);
+    }
+
+    private List<String> singletonRule(String rule) {
+        List<String> lines = new ArrayList<>();
+        lines.add(rule);
+        return lines;
+    }
+}
@@ -0,0 +1,124 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures how compilation and simulation scale with the size of the program, the number of variables, the density of
+ * jumps and the number of jumps per jump point. Each test prints one line per step.
+ */
+public class ScalingTest {
+
+    private static final int PROGRAMS = 20; // programs per step
+    private static final int ROUNDS = 5;    // measured compilations and runs per program
+    private static final int WARM_UP = 3;   // discarded compilations and runs per program before measuring
+
+    @Test
+    public void testSize() throws Exception {
+        System.out.println("size");
+        for (int size : new int[]{50, 100, 200, 400, 800, 950}) {
+            measure(size, 20, 0.1, 2);
+        }
+    }
+
+    @Test
+    public void testVariableCount() throws Exception {
+        System.out.println("variables");
+        for (int variables : new int[]{1, 10, 50, 100, 200, 400}) {
+            measure(500, variables, 0.1, 2);
+        }
+    }
+
+    @Test
+    public void testJumpDensity() throws Exception {
+        System.out.println("jump density");
+        for (double density : new double[]{0, 0.1, 0.2, 0.4, 0.8, 1}) {
+            measure(800, 20, density, 2);
+        }
+    }
+
+    @Test
+    public void testLabelFanIn() throws Exception {
+        System.out.println("label fan-in");
+        for (int fanIn : new int[]{1, 2, 8, 32, 128, 512}) {
+            measure(800, 20, 0.5, fanIn);
+        }
+    }
+
+    @Test
+    public void testSizeLimit() throws Exception {
+        for (int size = 990; size <= 1010; size++) {
+            List<String> program = new ProgramGenerator(size, size, 1, 0, 1).generate();
+            try {
+                JohnnyScript.parse(program).getCode();
+                assertTrue("Program of size " + size + " compiled", size <= RamCode.MAX_LINES - 1);
+            } catch (ProgramTooLargeException e) {
+                assertTrue("Program of size " + size + " rejected", size > RamCode.MAX_LINES - 1);
+            }
+        }
+    }
+
+    /**
+     * Compiles and runs generated programs of one shape and prints the compile throughput and the median run time. Every
+     * program is compiled and run WARM_UP times before measuring, so the numbers don't depend on how far the JIT got in
+     * earlier steps. The run time only covers {@link MicrocodeEngine#run(long)}, not loading the ram file.
+     */
+    private void measure(int size, int variables, double jumpDensity, int fanIn) throws Exception {
+        ProgramGenerator generator = new ProgramGenerator(size * 31L + variables, size, variables, jumpDensity, fanIn);
+
+        List<List<String>> sources = new ArrayList<>();
+        List<List<String>> rams = new ArrayList<>();
+        long jumps = 0;
+        for (int program = 0; program < PROGRAMS; program++) {
+            List<String> source = generator.generate();
+            for (String line : source) {
+                if (line.startsWith("jmp")) jumps++;
+            }
+            sources.add(source);
+            rams.add(JohnnyScript.compileCode(source, new RuleDatabase(), false, false));
+        }
+        for (int round = 0; round < WARM_UP; round++) {
+            for (int program = 0; program < PROGRAMS; program++) {
+                JohnnyScript.compileCode(sources.get(program), new RuleDatabase(), false, false);
+                new MicrocodeEngine(rams.get(program)).run(MicrocodeEngine.DEFAULT_CYCLE_LIMIT);
+            }
+        }
+
+        long compileNanos = 0;
+        for (List<String> source : sources) {
+            long start = System.nanoTime();
+            for (int round = 0; round < ROUNDS; round++) {
+                JohnnyScript.compileCode(source, new RuleDatabase(), false, false);
+            }
+            compileNanos += System.nanoTime() - start;
+        }
+
+        // medians over all measured runs, a single run can be hit by a GC pause
+        long[] runNanos = new long[PROGRAMS * ROUNDS];
+        double[] instructionNanos = new double[PROGRAMS * ROUNDS];
+        long cycles = 0;
+        for (int program = 0; program < PROGRAMS; program++) {
+            for (int round = 0; round < ROUNDS; round++) {
+                MicrocodeEngine engine = new MicrocodeEngine(rams.get(program));
+                long start = System.nanoTime();
+                CycleReport report = engine.run(MicrocodeEngine.DEFAULT_CYCLE_LIMIT);
+                int run = program * ROUNDS + round;
+                runNanos[run] = System.nanoTime() - start;
+                instructionNanos[run] = (double) runNanos[run] / report.getInstructions();
+                cycles += report.getCycles();
+            }
+        }
+        Arrays.sort(runNanos);
+        Arrays.sort(instructionNanos);
+
+        double compilations = PROGRAMS * ROUNDS;
+        System.out.println(String.format("  size %4d, variables %3d, density %.2f, fan-in %3d: %5d jumps/program, "
+                        + "%8.0f compilations/s, %10d cycles/program, %8.3f ms/run, %6.1f ns/instruction",
+                size, variables, jumpDensity, fanIn, jumps / PROGRAMS, compilations / (compileNanos / 1e9),
+                cycles / (PROGRAMS * ROUNDS), runNanos[runNanos.length / 2] / 1e6,
+                instructionNanos[instructionNanos.length / 2]));
+    }
+}
@@ -0,0 +1,105 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for Superoptimizer
+ */
+public class SuperoptimizerTest {
+
+    private static final int TAKE = Window.indexOf(JohnnyScript.Codes.TAKE.codeOrdinal);
+    private static final int ADD = Window.indexOf(JohnnyScript.Codes.ADD.codeOrdinal);
+    private static final int SAVE = Window.indexOf(JohnnyScript.Codes.SAVE.codeOrdinal);
+    private static final int INC = Window.indexOf(JohnnyScript.Codes.INC.codeOrdinal);
+    private static final int DEC = Window.indexOf(JohnnyScript.Codes.DEC.codeOrdinal);
+
+    private final Superoptimizer optimizer = new Superoptimizer(ForkJoinPool.commonPool());
+
+    @Test
+    public void testRemoveDeadStore() throws Exception {
+        Window window = new Window(new int[]{TAKE, SAVE}, new int[]{0, 0}, false);
+        assertEquals("", optimizer.search(window));
+    }
+
+    @Test
+    public void testKeepLiveAccumulator() throws Exception {
+        Window window = new Window(new int[]{TAKE, SAVE}, new int[]{0, 0}, true);
+        assertEquals("TAKE 0", optimizer.search(window));
+    }
+
+    @Test
+    public void testRemoveRedundantLoad() throws Exception {
+        Window window = new Window(new int[]{TAKE, SAVE, TAKE}, new int[]{0, 1, 1}, true);
+        assertEquals("TAKE 0, SAVE 1", optimizer.search(window));
+    }
+
+    @Test
+    public void testIncDec() throws Exception {
+        Window window = new Window(new int[]{INC, DEC}, new int[]{0, 0}, true);
+        assertEquals("TAKE 0", optimizer.search(window));
+    }
+
+    @Test
+    public void testNoShorterSequence() throws Exception {
+        Window window = new Window(new int[]{TAKE, ADD, SAVE}, new int[]{0, 1, 2}, true);
+        assertNull(optimizer.search(window));
+    }
+
+    @Test
+    public void testPoolSizeIndependent() throws Exception {
+        Window window = new Window(new int[]{TAKE, ADD, SAVE, TAKE, SAVE}, new int[]{0, 1, 2, 2, 0}, false);
+        String expected = new Superoptimizer(new ForkJoinPool(1)).search(window);
+        assertNotNull(expected);
+        assertEquals(expected, new Superoptimizer(new ForkJoinPool(4)).search(window));
+    }
+
+    /**
+     * The search has to use the same semantics as the MicrocodeEngine, otherwise the proofs are worthless
+     */
+    @Test
+    public void testSemanticsMatchEngine() throws Exception {
+        Random random = new Random(42);
+        for (int code = 0; code < RuleDatabase.STRAIGHT_LINE_CODES.length; code++) {
+            for (int run = 0; run < 20; run++) {
+                int acc = random.nextInt(MicrocodeEngine.MAX_VALUE + 1);
+                int value = run == 0 ? 0 : run == 1 ? MicrocodeEngine.MAX_VALUE : random.nextInt(MicrocodeEngine.MAX_VALUE + 1);
+
+                RamCode ramCode = new RamCode();
+                ramCode.addVar("acc", 0);
+                ramCode.addVar("x", 0);
+                ramCode.addCodeWithVar(String.valueOf(JohnnyScript.Codes.TAKE.codeOrdinal), "acc");
+                ramCode.addCodeWithVar(RuleDatabase.STRAIGHT_LINE_CODES[code].getCode(), "x");
+                ramCode.addCode(JohnnyScript.Codes.HLT.codeOrdinal + "000");
+                List<String> ram = new ArrayList<>(ramCode.getCode());
+                ram.set(1, String.valueOf(acc));
+                ram.set(2, String.valueOf(value));
+
+                MicrocodeEngine engine = new MicrocodeEngine(ram);
+                engine.run(MicrocodeEngine.DEFAULT_CYCLE_LIMIT);
+
+                int[] state = {acc, value};
+                Superoptimizer.execute(code, 0, state);
+
+                String instruction = RuleDatabase.STRAIGHT_LINE_CODES[code] + " with acc " + acc + ", x " + value;
+                assertEquals(instruction, state[0], engine.getAccumulator());
+                assertEquals(instruction, state[1], engine.readMemory(2));
+            }
+        }
+    }
+
+    @Test
+    public void testAffineForms() throws Exception {
+        int sub = Window.indexOf(JohnnyScript.Codes.SUB.codeOrdinal);
+        int[][] forms = Superoptimizer.affineForms(new int[]{INC, TAKE, sub, SAVE}, new int[]{0, 0, 1, 1}, 3);
+
+        // coefficients of acc, x0, x1 followed by the constant
+        assertArrayEquals(new int[]{0, 1, 0, 1}, forms[1]); // x0 + 1
+        assertArrayEquals(new int[]{0, 1, MicrocodeEngine.MAX_VALUE, 1}, forms[2]); // x0 + 1 - x1
+        assertArrayEquals(forms[2], forms[0]);
+    }
+}
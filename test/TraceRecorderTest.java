@@ -0,0 +1,199 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for TraceRecorder and TraceReplay
+ */
+public class TraceRecorderTest {
+
+    private Path tracePath;
+
+    @Before
+    public void setUp() throws Exception {
+        tracePath = Files.createTempFile("jUnit", ".trace");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(tracePath);
+    }
+
+    @Test
+    public void testReplayMultiplication() throws Exception {
+        List<String> source = Files.readAllLines(FileSystems.getDefault().getPath("examples", "multiplication.jns"));
+        List<String> ram = JohnnyScript.parse(source).getCode();
+
+        MicrocodeEngine engine = new MicrocodeEngine(ram);
+        CycleReport report;
+        try (TraceRecorder recorder = TraceRecorder.open(tracePath)) {
+            report = engine.run(MicrocodeEngine.DEFAULT_CYCLE_LIMIT, recorder);
+            assertEquals(report.getInstructions(), recorder.getRecords());
+        }
+
+        TraceReplay replay = TraceReplay.open(tracePath);
+        assertEquals(report.getInstructions(), replay.size());
+        assertEquals(0, replay.getAddress());
+        assertEquals(JohnnyScript.Codes.JMP.codeOrdinal, replay.getOpcode());
+
+        replay.forward(replay.size());
+        assertEquals(-1, replay.getAddress());
+        assertEquals(15, replay.readMemory(1));
+        assertMemoryEquals(engine, replay);
+
+        replay.backward(1);
+        assertEquals(JohnnyScript.Codes.HLT.codeOrdinal, replay.getOpcode());
+
+        replay.goTo(0);
+        assertEquals(0, replay.getAccumulator());
+        assertMemoryEquals(new MicrocodeEngine(ram), replay);
+    }
+
+    @Test
+    public void testRingWrapAround() throws Exception {
+        MicrocodeEngine engine = new MicrocodeEngine(countdown());
+        CycleReport report;
+        FileChannel channel = FileChannel.open(tracePath, StandardOpenOption.WRITE);
+        try (TraceRecorder recorder = new TraceRecorder(channel, 2 * TraceRecorder.CHUNK_SIZE)) {
+            report = engine.run(MicrocodeEngine.DEFAULT_CYCLE_LIMIT, recorder);
+        }
+        assertTrue(Files.size(tracePath) > 2 * TraceRecorder.CHUNK_SIZE); // more than the ring holds
+
+        TraceReplay replay = TraceReplay.open(tracePath);
+        assertEquals(report.getInstructions(), replay.size());
+
+        replay.goTo(replay.size());
+        assertMemoryEquals(engine, replay);
+
+        // the counter is decremented every fourth instruction after the first jump
+        int step = 4 * 1000 + 1;
+        replay.goTo(step);
+        assertEquals(MicrocodeEngine.MAX_VALUE - 1000, replay.readMemory(1));
+        assertEquals(replay.readMemory(1), replay.getAccumulator());
+        assertEquals(2, replay.getAddress());
+        replay.backward(1);
+        assertEquals(6, replay.getAddress());
+        replay.goTo(0);
+        assertEquals(MicrocodeEngine.MAX_VALUE, replay.readMemory(1));
+        replay.forward(step);
+        assertEquals(MicrocodeEngine.MAX_VALUE - 1000, replay.readMemory(1));
+    }
+
+    @Test
+    public void testBackwardMatchesForward() throws Exception {
+        try (TraceRecorder recorder = TraceRecorder.open(tracePath)) {
+            new MicrocodeEngine(countdown()).run(MicrocodeEngine.DEFAULT_CYCLE_LIMIT, recorder);
+        }
+        TraceReplay forward = TraceReplay.open(tracePath);
+        TraceReplay backward = TraceReplay.open(tracePath);
+        assertTrue(forward.size() > 10 * TraceReplay.CHECKPOINT_INTERVAL);
+
+        int[] counter = new int[forward.size() + 1];
+        int[] acc = new int[forward.size() + 1];
+        int[] address = new int[forward.size() + 1];
+        for (int step = 0; step <= forward.size(); step++) {
+            counter[step] = forward.readMemory(1);
+            acc[step] = forward.getAccumulator();
+            address[step] = forward.getAddress();
+            forward.forward(1);
+        }
+
+        // single steps back over every checkpoint boundary
+        backward.goTo(backward.size());
+        for (int step = backward.size(); step >= 0; step--) {
+            assertEquals("step " + step, step, backward.getStep());
+            assertEquals("step " + step, counter[step], backward.readMemory(1));
+            assertEquals("step " + step, acc[step], backward.getAccumulator());
+            assertEquals("step " + step, address[step], backward.getAddress());
+            backward.backward(1);
+        }
+
+        // jumps back across several blocks at once
+        for (int step = forward.size(); step >= 0; step -= 3 * TraceReplay.CHECKPOINT_INTERVAL + 7) {
+            forward.goTo(step);
+            assertEquals("step " + step, counter[step], forward.readMemory(1));
+            assertEquals("step " + step, acc[step], forward.getAccumulator());
+            assertEquals("step " + step, address[step], forward.getAddress());
+        }
+        forward.goTo(0);
+        assertMemoryEquals(new MicrocodeEngine(countdown()), forward);
+    }
+
+    @Test
+    public void testBankedTrace() throws Exception {
+        List<String> ram = new ArrayList<>();
+        for (int i = 0; i < 2 * MicrocodeEngine.MEMORY_SIZE; i++) {
+            ram.add("000");
+        }
+        ram.set(0, JohnnyScript.Codes.CBANK.codeOrdinal + "001");
+        ram.set(1, JohnnyScript.Codes.JMP.codeOrdinal + "005");
+        ram.set(1005, JohnnyScript.Codes.DBANK.codeOrdinal + "001");
+        ram.set(1006, JohnnyScript.Codes.INC.codeOrdinal + "010");
+        ram.set(1007, JohnnyScript.Codes.HLT.codeOrdinal + "000");
+
+        MicrocodeEngine engine = new MicrocodeEngine(ram);
+        try (TraceRecorder recorder = TraceRecorder.open(tracePath)) {
+            engine.run(MicrocodeEngine.DEFAULT_CYCLE_LIMIT, recorder);
+        }
+
+        TraceReplay replay = TraceReplay.open(tracePath);
+        replay.forward(3);
+        assertEquals(1006, replay.getAddress());
+        replay.forward(1);
+        assertEquals(1, replay.readMemory(1010));
+        assertEquals(0, replay.readMemory(10));
+        replay.forward(1);
+        assertMemoryEquals(engine, replay);
+    }
+
+    @Test(expected = InvalidTraceException.class)
+    public void testInvalidTrace() throws Exception {
+        Files.write(tracePath, "JohnnyScript".getBytes());
+
+        TraceReplay.open(tracePath);
+    }
+
+    @Test(expected = InvalidTraceException.class)
+    public void testTruncatedTrace() throws Exception {
+        try (TraceRecorder recorder = TraceRecorder.open(tracePath)) {
+            recorder.begin(new int[MicrocodeEngine.MEMORY_SIZE]);
+        }
+        byte[] trace = Files.readAllBytes(tracePath);
+        Files.write(tracePath, Arrays.copyOf(trace, trace.length / 2));
+
+        TraceReplay.open(tracePath);
+    }
+
+    /**
+     * @return ram of a loop that counts a cell down from MAX_VALUE to 0, four instructions per round
+     */
+    private static List<String> countdown() {
+        List<String> ram = new ArrayList<>();
+        ram.add(JohnnyScript.Codes.JMP.codeOrdinal + "002");
+        ram.add(String.valueOf(MicrocodeEngine.MAX_VALUE)); // counter
+        ram.add(JohnnyScript.Codes.TST.codeOrdinal + "001");
+        ram.add(JohnnyScript.Codes.JMP.codeOrdinal + "005");
+        ram.add(JohnnyScript.Codes.HLT.codeOrdinal + "000");
+        ram.add(JohnnyScript.Codes.DEC.codeOrdinal + "001");
+        ram.add(JohnnyScript.Codes.JMP.codeOrdinal + "002");
+        return ram;
+    }
+
+    private static void assertMemoryEquals(MicrocodeEngine engine, TraceReplay replay) {
+        for (int address = 0; address < MicrocodeEngine.MEMORY_SIZE; address++) {
+            assertEquals("address " + address, engine.readMemory(address), replay.readMemory(address));
+        }
+        assertEquals(engine.getAccumulator(), replay.getAccumulator());
+    }
+}